@@ -0,0 +1,345 @@
+package async;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.spi.AsynchronousChannelProvider;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One read completion followed by one write completion of an echo, with the {@code Map<String, Object>} attachment
+ * the original {@code ReadWriteHandler} used and with a typed context in its place.
+ * <p>
+ * No I/O: the channel is a {@link ScriptedChannel} that hands every read the same 32-byte frame and every write all
+ * its bytes, and only completes when the benchmark says so. {@code hashMap} and {@code typedContext} do the same work,
+ * copying the request into the reply, writing it and reading again, and differ only in how a completion finds its
+ * state: string keys, hashing and casts, or fields and an enum. {@code connectionContext} is, for reference, the real
+ * {@link ConnectionContext} driven by {@link ReadHandler} and {@link WriteHandler}: everything a completion does on the
+ * server, decoding the frame, queueing the echo, the gathering write, the timeout renewals, the metrics.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(3)
+public class AttachmentBenchmark {
+    private static final int PAYLOAD_LENGTH = 32;
+
+    private ScriptedChannel mapChannel;
+    private ScriptedChannel typedChannel;
+    private ScriptedChannel contextChannel;
+    private ConnectionContext context;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        FrameCodec codec = LengthPrefixedCodec.INSTANCE;
+        ByteBuffer request = ByteBuffer.allocate(codec.encodedLength(PAYLOAD_LENGTH));
+        codec.encode(new byte[PAYLOAD_LENGTH], request);
+        request.flip();
+        int capacity = request.remaining();
+
+        mapChannel = new ScriptedChannel(request);
+        Map<String, Object> actionInfo = new HashMap<>();
+        actionInfo.put("action", "read");
+        actionInfo.put("channel", mapChannel);
+        actionInfo.put("buffer", ByteBuffer.allocateDirect(capacity));
+        actionInfo.put("writes", new ByteBuffer[]{ByteBuffer.allocateDirect(capacity)});
+        mapChannel.read((ByteBuffer) actionInfo.get("buffer"), actionInfo, MapRead.INSTANCE);
+
+        typedChannel = new ScriptedChannel(request);
+        TypedContext typed = new TypedContext(typedChannel, capacity);
+        typedChannel.read(typed.buffer, typed, TypedRead.INSTANCE);
+
+        contextChannel = new ScriptedChannel(request);
+        Shard shard = new Shard(0, null, null, Protocol.Type.ECHO, codec, new ServerLimits());
+        context = new ConnectionContext(contextChannel, Protocol.Type.ECHO.open(codec), shard);
+        context.read();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public long hashMap() {
+        mapChannel.completeRead();
+        return mapChannel.completeWrite();
+    }
+
+    @Benchmark
+    public long typedContext() {
+        typedChannel.completeRead();
+        return typedChannel.completeWrite();
+    }
+
+    @Benchmark
+    public long connectionContext() {
+        contextChannel.completeRead();
+        return contextChannel.completeWrite();
+    }
+
+    /** The request arrived: echo it. The same work as {@link TypedRead}, the state looked up by key. */
+    static final class MapRead implements CompletionHandler<Integer, Map<String, Object>> {
+        static final MapRead INSTANCE = new MapRead();
+
+        @Override
+        public void completed(Integer bytes, Map<String, Object> actionInfo) {
+            String action = (String) actionInfo.get("action");
+            if (!"read".equals(action)) {
+                throw new IllegalStateException(action);
+            }
+            ByteBuffer buffer = (ByteBuffer) actionInfo.get("buffer");
+            ByteBuffer[] writes = (ByteBuffer[]) actionInfo.get("writes");
+            ByteBuffer reply = writes[0];
+            reply.clear();
+            reply.put(buffer.flip()).flip();
+            buffer.clear();
+            actionInfo.put("action", "write");
+            AsynchronousSocketChannel channel = (AsynchronousSocketChannel) actionInfo.get("channel");
+            channel.write(writes, 0, 1, 0L, TimeUnit.MILLISECONDS, actionInfo, MapWritten.INSTANCE);
+        }
+
+        @Override
+        public void failed(Throwable exc, Map<String, Object> actionInfo) {
+            throw new IllegalStateException(exc);
+        }
+    }
+
+    /** The echo is out: read the next request. */
+    static final class MapWritten implements CompletionHandler<Long, Map<String, Object>> {
+        static final MapWritten INSTANCE = new MapWritten();
+
+        @Override
+        public void completed(Long bytes, Map<String, Object> actionInfo) {
+            String action = (String) actionInfo.get("action");
+            if (!"write".equals(action)) {
+                throw new IllegalStateException(action);
+            }
+            actionInfo.put("action", "read");
+            AsynchronousSocketChannel channel = (AsynchronousSocketChannel) actionInfo.get("channel");
+            channel.read((ByteBuffer) actionInfo.get("buffer"), actionInfo, MapRead.INSTANCE);
+        }
+
+        @Override
+        public void failed(Throwable exc, Map<String, Object> actionInfo) {
+            throw new IllegalStateException(exc);
+        }
+    }
+
+    /** What the map holds, as fields. */
+    static final class TypedContext {
+        enum Action { READ, WRITE }
+
+        final AsynchronousSocketChannel channel;
+        final ByteBuffer buffer;
+        final ByteBuffer[] writes;
+        Action action = Action.READ;
+
+        TypedContext(AsynchronousSocketChannel channel, int capacity) {
+            this.channel = channel;
+            this.buffer = ByteBuffer.allocateDirect(capacity);
+            this.writes = new ByteBuffer[]{ByteBuffer.allocateDirect(capacity)};
+        }
+    }
+
+    static final class TypedRead implements CompletionHandler<Integer, TypedContext> {
+        static final TypedRead INSTANCE = new TypedRead();
+
+        @Override
+        public void completed(Integer bytes, TypedContext context) {
+            if (context.action != TypedContext.Action.READ) {
+                throw new IllegalStateException(context.action.name());
+            }
+            ByteBuffer reply = context.writes[0];
+            reply.clear();
+            reply.put(context.buffer.flip()).flip();
+            context.buffer.clear();
+            context.action = TypedContext.Action.WRITE;
+            context.channel.write(context.writes, 0, 1, 0L, TimeUnit.MILLISECONDS, context, TypedWritten.INSTANCE);
+        }
+
+        @Override
+        public void failed(Throwable exc, TypedContext context) {
+            throw new IllegalStateException(exc);
+        }
+    }
+
+    static final class TypedWritten implements CompletionHandler<Long, TypedContext> {
+        static final TypedWritten INSTANCE = new TypedWritten();
+
+        @Override
+        public void completed(Long bytes, TypedContext context) {
+            if (context.action != TypedContext.Action.WRITE) {
+                throw new IllegalStateException(context.action.name());
+            }
+            context.action = TypedContext.Action.READ;
+            context.channel.read(context.buffer, context, TypedRead.INSTANCE);
+        }
+
+        @Override
+        public void failed(Throwable exc, TypedContext context) {
+            throw new IllegalStateException(exc);
+        }
+    }
+
+    /**
+     * A channel that never touches the network: a read fills the buffer with the request, a write takes everything
+     * it is given, and each only completes on {@link #completeRead()} or {@link #completeWrite()}, on the caller's
+     * thread, as if the group had dispatched it.
+     */
+    static final class ScriptedChannel extends AsynchronousSocketChannel {
+        private final ByteBuffer request;
+        private int readBytes;
+        private Object reader;
+        private CompletionHandler<Integer, Object> readHandler;
+        private long writtenBytes;
+        private Object writer;
+        private CompletionHandler<Long, Object> writeHandler;
+        private boolean open = true;
+
+        ScriptedChannel(ByteBuffer request) {
+            super(AsynchronousChannelProvider.provider());
+            this.request = request;
+        }
+
+        void completeRead() {
+            Object attachment = reader;
+            reader = null;
+            readHandler.completed(readBytes, attachment);
+        }
+
+        long completeWrite() {
+            Object attachment = writer;
+            writer = null;
+            writeHandler.completed(writtenBytes, attachment);
+            return writtenBytes;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <A> void read(ByteBuffer dst, long timeout, TimeUnit unit, A attachment,
+                             CompletionHandler<Integer, ? super A> handler) {
+            readBytes = request.remaining();
+            dst.put(request.duplicate());
+            reader = attachment;
+            readHandler = (CompletionHandler<Integer, Object>) handler;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <A> void write(ByteBuffer[] srcs, int offset, int length, long timeout, TimeUnit unit, A attachment,
+                              CompletionHandler<Long, ? super A> handler) {
+            long bytes = 0;
+            for (int i = offset; i < offset + length; i++) {
+                bytes += srcs[i].remaining();
+                srcs[i].position(srcs[i].limit());
+            }
+            writtenBytes = bytes;
+            writer = attachment;
+            writeHandler = (CompletionHandler<Long, Object>) handler;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+
+        @Override
+        public AsynchronousSocketChannel bind(SocketAddress local) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <T> AsynchronousSocketChannel setOption(SocketOption<T> name, T value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <T> T getOption(SocketOption<T> name) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Set<SocketOption<?>> supportedOptions() {
+            return Set.of();
+        }
+
+        @Override
+        public AsynchronousSocketChannel shutdownInput() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public AsynchronousSocketChannel shutdownOutput() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public SocketAddress getRemoteAddress() {
+            return null;
+        }
+
+        @Override
+        public SocketAddress getLocalAddress() {
+            return null;
+        }
+
+        @Override
+        public <A> void connect(SocketAddress remote, A attachment, CompletionHandler<Void, ? super A> handler) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Future<Void> connect(SocketAddress remote) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Future<Integer> read(ByteBuffer dst) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <A> void read(ByteBuffer[] dsts, int offset, int length, long timeout, TimeUnit unit, A attachment,
+                             CompletionHandler<Long, ? super A> handler) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <A> void write(ByteBuffer src, long timeout, TimeUnit unit, A attachment,
+                              CompletionHandler<Integer, ? super A> handler) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Future<Integer> write(ByteBuffer src) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package async;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of {@code benchmarks.jar}: the usual JMH command line, with the GC profiler always on so every result
+ * comes with its allocation rate ({@code gc.alloc.rate.norm} is bytes allocated per operation).
+ * <p>
+ * To refresh the committed baseline: {@code java -jar target/benchmarks.jar -rf text -rff baseline/results.txt}, keeping
+ * the forks and iterations of the annotations.
+ */
+public class BenchmarkMain {
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        Options options = new OptionsBuilder()
+                .parent(commandLine)
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,77 @@
+package async;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The buffer strategies for one write, as the servers used to do it per message: a fresh heap buffer (plus the hidden
+ * copy into a temporary direct buffer inside the JDK), a fresh direct buffer, or a {@link BufferPool} buffer.
+ * Writing to {@code /dev/null} keeps the syscall but takes the network out of the picture.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(3)
+public class BufferBenchmark {
+    @Param({"32", "1024", "16384"})
+    public int size;
+
+    private byte[] payload;
+    private FileChannel sink;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        payload = new byte[size];
+        sink = FileChannel.open(Path.of("/dev/null"), StandardOpenOption.WRITE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        sink.close();
+    }
+
+    @Benchmark
+    public int heap() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put(payload).flip();
+        return sink.write(buffer);
+    }
+
+    @Benchmark
+    public int direct() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        buffer.put(payload).flip();
+        return sink.write(buffer);
+    }
+
+    @Benchmark
+    public int pooled() throws IOException {
+        ByteBuffer buffer = BufferPool.SHARED.acquire(size);
+        try {
+            buffer.put(payload).flip();
+            return sink.write(buffer);
+        } finally {
+            BufferPool.SHARED.release(buffer);
+        }
+    }
+}
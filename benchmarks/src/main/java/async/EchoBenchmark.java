@@ -0,0 +1,134 @@
+package async;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end echo over loopback: each benchmark thread owns one connection and does a blocking request/reply round
+ * trip per operation, against an in-process {@link ServerWithFuture} or {@link ServerWithCompletionHandler} (one shard)
+ * bound to an ephemeral port.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(3)
+@Threads(4)
+public class EchoBenchmark {
+    @Param({"future", "completionHandler"})
+    public String server;
+
+    @Param({"32"})
+    public int payloadSize;
+
+    private final FrameCodec codec = FrameCodec.fromSystemProperty();
+    private InetSocketAddress address;
+
+    private ServerWithFuture futureServer;
+    private Thread acceptThread;
+    private ServerShards shards;
+
+    @Setup(Level.Trial)
+    public void startServer() throws IOException {
+        InetSocketAddress anyPort = new InetSocketAddress("127.0.0.1", 0);
+        switch (server) {
+            case "future" -> {
+                futureServer = new ServerWithFuture();
+                address = futureServer.bind(anyPort);
+                acceptThread = new Thread(() -> {
+                    try {
+                        futureServer.acceptLoop();
+                    } catch (IOException | InterruptedException e) {
+                        // Shut down.
+                    }
+                }, "EchoBenchmark-accept");
+                acceptThread.start();
+            }
+            case "completionHandler" -> {
+                shards = ServerShards.open(anyPort, codec, new ServerLimits(), 1, ServerShards.PROCESSORS);
+                address = shards.localAddress();
+            }
+            default -> throw new IllegalArgumentException("Unknown server: " + server);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() throws InterruptedException {
+        if (futureServer != null) {
+            futureServer.shutdown();
+            acceptThread.join();
+        }
+        if (shards != null) {
+            shards.close();
+            shards.awaitTermination();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        private SocketChannel channel;
+        private ByteBuffer request;
+        private ByteBuffer response;
+
+        @Setup(Level.Trial)
+        public void connect(EchoBenchmark benchmark) throws IOException {
+            FrameCodec codec = benchmark.codec;
+            channel = SocketChannel.open(benchmark.address);
+            request = ByteBuffer.allocateDirect(codec.encodedLength(benchmark.payloadSize));
+            codec.encode(new byte[benchmark.payloadSize], request);
+            request.flip();
+            response = ByteBuffer.allocateDirect(codec.encodedLength(benchmark.payloadSize) + codec.encodedLength(Echo.SUFFIX.length));
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        int roundTrip() throws IOException {
+            request.rewind();
+            while (request.hasRemaining()) {
+                channel.write(request);
+            }
+            response.clear();
+            while (response.hasRemaining()) {
+                if (channel.read(response) < 0) {
+                    throw new EOFException("Server closed the connection");
+                }
+            }
+            return response.get(0);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public int throughput(Client client) throws IOException {
+        return client.roundTrip();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int latency(Client client) throws IOException {
+        return client.roundTrip();
+    }
+}
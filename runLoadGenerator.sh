@@ -0,0 +1,5 @@
+#!/usr/bin/env bash
+
+# Extra arguments are passed to Maven, e.g. ./runLoadGenerator.sh -Dnio2lab.load.connections=64 -Dnio2lab.load.rate=50000
+mvn compile
+mvn exec:java -Dexec.mainClass="async.ClientWithFuture" -Dexec.args="load" "$@"
@@ -0,0 +1,71 @@
+package async;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * What the text protocols, {@link HttpProtocol} and {@link CacheProtocol}, need to parse in place: searching and
+ * comparing bytes of the read buffer by absolute index, without moving its position or building a {@code String}.
+ */
+final class Ascii {
+    private Ascii() {
+    }
+
+    static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /** The index of the first {@code b} in {@code buffer[from, to)}, or -1. */
+    static int indexOf(ByteBuffer buffer, char b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static boolean equals(ByteBuffer buffer, int start, int end, byte[] expected) {
+        if (end - start != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (buffer.get(start + i) != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean startsWith(ByteBuffer buffer, int start, int end, byte[] prefix) {
+        return end - start >= prefix.length && equals(buffer, start, start + prefix.length, prefix);
+    }
+
+    /** {@code expected} must be lower case. */
+    static boolean equalsIgnoreCase(ByteBuffer buffer, int start, int end, byte[] expected) {
+        if (end - start != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            byte b = buffer.get(start + i);
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Moves the unparsed bytes {@code [from, position)} of a buffer in write mode to its front. */
+    static void compact(ByteBuffer buffer, int from) {
+        int position = buffer.position();
+        if (from == position) {
+            buffer.clear();
+        } else {
+            buffer.limit(position).position(from);
+            buffer.compact();
+        }
+    }
+}
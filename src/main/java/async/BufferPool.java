@@ -0,0 +1,193 @@
+package async;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A shared pool of direct {@link ByteBuffer}s, split into power-of-two size classes.
+ * <p>
+ * Reading into or writing from a heap buffer makes {@code sun.nio.ch.IOUtil} copy through a temporary direct buffer,
+ * and allocating one per read/write turns every round trip into garbage. Both servers therefore
+ * {@link #acquire(int) acquire} their buffers here and {@link #release(ByteBuffer) release} them when done, so the
+ * steady state allocates nothing.
+ * <p>
+ * Each size class is a fixed array of slots that is claimed and refilled with CAS. A thread starts probing at a slot
+ * derived from its id, so concurrent threads mostly touch different slots (striping) and no lock is ever taken.
+ *
+ * @see <a href="https://docs.oracle.com/en/java/javase/17/docs/api/java.base/java/nio/ByteBuffer.html#direct">Direct vs. non-direct buffers</a>
+ */
+public final class BufferPool {
+    /** The pool used by the servers, sized by {@code -Dnio2lab.pool.slots} (slots per size class). */
+    public static final BufferPool SHARED = new BufferPool(
+            Integer.getInteger("nio2lab.pool.slots", 256),
+            Boolean.getBoolean("nio2lab.pool.leakDetection"));
+
+    static final int MIN_SHIFT = 5;  // 32 bytes
+    static final int MAX_SHIFT = 16; // 64 KiB
+
+    private final AtomicReferenceArray<ByteBuffer>[] classes;
+    private final int slotsPerClass;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder releases = new LongAdder();
+    private final LongAdder drops = new LongAdder();
+    private final LongAdder outstanding = new LongAdder();
+
+    // Only populated when leak detection is on: buffer -> where it was acquired.
+    private final Map<ByteBuffer, Throwable> tracked;
+
+    public BufferPool(int slotsPerClass, boolean leakDetection) {
+        if (slotsPerClass <= 0) {
+            throw new IllegalArgumentException("slotsPerClass must be positive: " + slotsPerClass);
+        }
+        this.slotsPerClass = slotsPerClass;
+        this.classes = newClasses(MAX_SHIFT - MIN_SHIFT + 1, slotsPerClass);
+        // Identity semantics matter here: ByteBuffer.equals/hashCode look at the remaining content.
+        this.tracked = leakDetection ? Collections.synchronizedMap(new IdentityHashMap<>()) : null;
+    }
+
+    /**
+     * Returns a cleared direct buffer with {@code limit == minCapacity} and a capacity of at least {@code minCapacity}.
+     * Its content is whatever the previous user left behind.
+     */
+    public ByteBuffer acquire(int minCapacity) {
+        int sizeClass = sizeClass(minCapacity);
+        ByteBuffer buffer = null;
+        if (sizeClass >= 0) {
+            AtomicReferenceArray<ByteBuffer> slots = classes[sizeClass];
+            int start = stripe();
+            for (int i = 0; i < slotsPerClass; i++) {
+                int index = (start + i) % slotsPerClass;
+                ByteBuffer candidate = slots.get(index);
+                if (candidate != null && slots.compareAndSet(index, candidate, null)) {
+                    buffer = candidate;
+                    break;
+                }
+            }
+        }
+
+        if (buffer != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+            buffer = ByteBuffer.allocateDirect(sizeClass >= 0 ? 1 << (sizeClass + MIN_SHIFT) : minCapacity);
+        }
+        outstanding.increment();
+        if (tracked != null) {
+            tracked.put(buffer, new Throwable("Buffer acquired here"));
+        }
+
+        buffer.clear().limit(minCapacity);
+        return buffer;
+    }
+
+    /**
+     * Hands a buffer obtained from {@link #acquire(int)} back to the pool. The caller must not touch it afterwards.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        if (tracked != null && tracked.remove(buffer) == null) {
+            throw new IllegalStateException("Buffer released twice or not acquired from this pool: " + buffer);
+        }
+        outstanding.decrement();
+        releases.increment();
+
+        int capacity = buffer.capacity();
+        int sizeClass = sizeClass(capacity);
+        if (!buffer.isDirect() || sizeClass < 0 || (1 << (sizeClass + MIN_SHIFT)) != capacity) {
+            // Oversized or foreign buffer: let the GC (and the direct buffer Cleaner) have it.
+            drops.increment();
+            return;
+        }
+
+        AtomicReferenceArray<ByteBuffer> slots = classes[sizeClass];
+        int start = stripe();
+        for (int i = 0; i < slotsPerClass; i++) {
+            int index = (start + i) % slotsPerClass;
+            if (slots.get(index) == null && slots.compareAndSet(index, null, buffer)) {
+                return;
+            }
+        }
+        drops.increment();
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long releases() {
+        return releases.sum();
+    }
+
+    public long drops() {
+        return drops.sum();
+    }
+
+    /** Buffers acquired but not yet released. A number that only grows under steady load is a leak. */
+    public long outstanding() {
+        return outstanding.sum();
+    }
+
+    /**
+     * Prints every buffer still held, with the stack that acquired it, when leak detection is enabled
+     * ({@code -Dnio2lab.pool.leakDetection=true}). Returns the number of buffers still held. Both servers call it once
+     * they stopped, when every buffer should be back.
+     */
+    public int reportLeaks() {
+        int held;
+        if (tracked == null) {
+            held = (int) outstanding();
+        } else {
+            synchronized (tracked) {
+                tracked.values().forEach(where -> where.printStackTrace(System.err));
+                held = tracked.size();
+            }
+        }
+        if (held > 0) {
+            System.err.println(held + " pooled buffers were never released");
+        }
+        return held;
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPool[hits=" + hits() + ", misses=" + misses() + ", releases=" + releases()
+                + ", drops=" + drops() + ", outstanding=" + outstanding() + "]";
+    }
+
+    // Java has no generic array creation: the one unchecked cast lives here.
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static AtomicReferenceArray<ByteBuffer>[] newClasses(int count, int slotsPerClass) {
+        AtomicReferenceArray<ByteBuffer>[] classes = new AtomicReferenceArray[count];
+        for (int i = 0; i < count; i++) {
+            classes[i] = new AtomicReferenceArray<>(slotsPerClass);
+        }
+        return classes;
+    }
+
+    /** Maps a capacity to its size class, or -1 when it is too large to pool. */
+    static int sizeClass(int capacity) {
+        if (capacity <= (1 << MIN_SHIFT)) {
+            return 0;
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(capacity - 1);
+        return shift <= MAX_SHIFT ? shift - MIN_SHIFT : -1;
+    }
+
+    private int stripe() {
+        // Spread the thread id so neighbouring ids don't probe neighbouring slots.
+        long id = Thread.currentThread().getId();
+        return (int) ((id * 0x9E3779B97F4A7C15L) >>> 33) % slotsPerClass;
+    }
+}
@@ -0,0 +1,291 @@
+package async;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The memcached text protocol, selected with {@code -Dnio2lab.protocol=cache}, over the {@link OffHeapCache}:
+ * <ul>
+ *     <li>{@code get <key>*} (and {@code gets}) answers {@code VALUE <key> <flags> <bytes>} and the data per hit,
+ *     then {@code END};</li>
+ *     <li>{@code set <key> <flags> <exptime> <bytes> [noreply]}, then the data line, answers {@code STORED};</li>
+ *     <li>{@code delete <key> [noreply]} answers {@code DELETED} or {@code NOT_FOUND};</li>
+ *     <li>{@code stats}, {@code version} and {@code quit} do what memcached does.</li>
+ * </ul>
+ * Like {@link HttpProtocol} it parses command lines in place, without building a {@code String}. A set's data is
+ * copied from the read buffer straight into the arena chunk reserved for it, however many reads it takes; a hit is
+ * queued as a view of its chunk, so values never pass through the heap in either direction.
+ */
+final class CacheProtocol implements Protocol {
+    private static final int MAX_LINE_LENGTH = 2048;
+
+    private static final byte[] STORED = Ascii.bytes("STORED\r\n");
+    private static final byte[] DELETED = Ascii.bytes("DELETED\r\n");
+    private static final byte[] NOT_FOUND = Ascii.bytes("NOT_FOUND\r\n");
+    private static final byte[] END = Ascii.bytes("END\r\n");
+    private static final byte[] ERROR = Ascii.bytes("ERROR\r\n");
+    private static final byte[] VERSION = Ascii.bytes("VERSION NIO2Lab\r\n");
+    private static final byte[] BAD_FORMAT = Ascii.bytes("CLIENT_ERROR bad command line format\r\n");
+    private static final byte[] BAD_CHUNK = Ascii.bytes("CLIENT_ERROR bad data chunk\r\n");
+    private static final byte[] LINE_TOO_LONG = Ascii.bytes("CLIENT_ERROR line too long\r\n");
+    private static final byte[] TOO_LARGE = Ascii.bytes("SERVER_ERROR object too large for cache\r\n");
+    private static final byte[] OUT_OF_MEMORY = Ascii.bytes("SERVER_ERROR out of memory storing object\r\n");
+
+    private static final byte[] GET = Ascii.bytes("get");
+    private static final byte[] GETS = Ascii.bytes("gets");
+    private static final byte[] SET = Ascii.bytes("set");
+    private static final byte[] DELETE = Ascii.bytes("delete");
+    private static final byte[] STATS = Ascii.bytes("stats");
+    private static final byte[] VERSION_COMMAND = Ascii.bytes("version");
+    private static final byte[] QUIT = Ascii.bytes("quit");
+    private static final byte[] NOREPLY = Ascii.bytes("noreply");
+
+    private final OffHeapCache cache = OffHeapCache.SHARED;
+
+    // Pooled, in write mode: unparsed bytes are [readIndex, position).
+    private ByteBuffer buffer = BufferPool.SHARED.acquire(FrameDecoder.BUFFER_SIZE << 4).clear();
+    private int readIndex;
+    private int scanIndex;
+    // The end of the token found by the last nextToken.
+    private int tokenEnd;
+
+    // The data of a set being read: copied into fillHandle of fillSegment, or skipped if that is -1.
+    private boolean readingData;
+    private OffHeapCache.Segment fillSegment;
+    private int fillHandle = -1;
+    private int fillWritten;
+    private long fillRemaining;
+    private boolean fillNoreply;
+
+    @Override
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    @Override
+    public boolean hasPartialRequest() {
+        return readingData || buffer.position() > readIndex;
+    }
+
+    @Override
+    public boolean process(ConnectionContext context) {
+        int position = buffer.position();
+        boolean open = true;
+        while (open) {
+            if (readingData) {
+                if (!data(context, position)) {
+                    break;
+                }
+                continue;
+            }
+            int lineFeed = Ascii.indexOf(buffer, '\n', scanIndex, position);
+            if (lineFeed < 0) {
+                scanIndex = position;
+                if (position - readIndex >= MAX_LINE_LENGTH) {
+                    send(context, LINE_TOO_LONG);
+                    open = false;
+                }
+                break;
+            }
+            int lineEnd = lineFeed > readIndex && buffer.get(lineFeed - 1) == '\r' ? lineFeed - 1 : lineFeed;
+            int lineStart = readIndex;
+            readIndex = scanIndex = lineFeed + 1;
+            open = command(context, lineStart, lineEnd);
+        }
+        if (open) {
+            compact();
+        }
+        return open;
+    }
+
+    @Override
+    public void release() {
+        if (fillHandle >= 0) {
+            fillSegment.abort(fillHandle);
+            fillHandle = -1;
+        }
+        if (buffer != null) {
+            BufferPool.SHARED.release(buffer);
+            buffer = null;
+        }
+    }
+
+    /** Handles one command line; returns false when the connection must close. */
+    private boolean command(ConnectionContext context, int start, int end) {
+        int commandStart = nextToken(start, end);
+        int commandEnd = tokenEnd;
+        if (commandStart < 0) {
+            send(context, ERROR);
+            return true;
+        }
+        if (Ascii.equals(buffer, commandStart, commandEnd, GET) || Ascii.equals(buffer, commandStart, commandEnd, GETS)) {
+            get(context, commandEnd, end);
+        } else if (Ascii.equals(buffer, commandStart, commandEnd, SET)) {
+            return set(context, commandEnd, end);
+        } else if (Ascii.equals(buffer, commandStart, commandEnd, DELETE)) {
+            delete(context, commandEnd, end);
+        } else if (Ascii.equals(buffer, commandStart, commandEnd, STATS)) {
+            stats(context);
+        } else if (Ascii.equals(buffer, commandStart, commandEnd, VERSION_COMMAND)) {
+            send(context, VERSION);
+        } else if (Ascii.equals(buffer, commandStart, commandEnd, QUIT)) {
+            return false;
+        } else {
+            send(context, ERROR);
+        }
+        return true;
+    }
+
+    private void get(ConnectionContext context, int from, int end) {
+        int keyStart;
+        while ((keyStart = nextToken(from, end)) >= 0) {
+            int keyEnd = from = tokenEnd;
+            if (keyEnd - keyStart > OffHeapCache.MAX_KEY_LENGTH) {
+                send(context, BAD_FORMAT);
+                return;
+            }
+            int hash = OffHeapCache.hash(buffer, keyStart, keyEnd);
+            OffHeapCache.Segment segment = cache.segment(hash);
+            int handle = segment.pin(buffer, keyStart, keyEnd, hash);
+            if (handle >= 0) {
+                context.send(segment.response(handle), segment, handle);
+            } else if (handle == OffHeapCache.Segment.PINNED_OUT) {
+                ByteBuffer copy = segment.copy(buffer, keyStart, keyEnd, hash);
+                if (copy != null) {
+                    context.send(copy);
+                }
+            }
+        }
+        send(context, END);
+    }
+
+    private boolean set(ConnectionContext context, int from, int end) {
+        int keyStart = nextToken(from, end);
+        int keyEnd = tokenEnd;
+        long flags = keyStart < 0 ? -1 : number(tokenEnd, end);
+        long dataLength = flags < 0 || nextToken(tokenEnd, end) < 0 ? -1 : number(tokenEnd, end);
+        if (dataLength < 0 || flags > 0xFFFFFFFFL) {
+            // Without a length the data cannot be told from the next command.
+            send(context, BAD_FORMAT);
+            return false;
+        }
+        int noreplyStart = nextToken(tokenEnd, end);
+        fillNoreply = noreplyStart >= 0 && Ascii.equals(buffer, noreplyStart, tokenEnd, NOREPLY);
+
+        readingData = true;
+        fillWritten = 0;
+        fillRemaining = dataLength + 2;
+        fillHandle = -1;
+        if (keyEnd - keyStart > OffHeapCache.MAX_KEY_LENGTH) {
+            send(context, BAD_FORMAT);
+        } else if (OffHeapCache.itemSize(keyEnd - keyStart, flags, dataLength) > OffHeapCache.PAGE_SIZE) {
+            send(context, TOO_LARGE);
+        } else {
+            int hash = OffHeapCache.hash(buffer, keyStart, keyEnd);
+            fillSegment = cache.segment(hash);
+            fillHandle = fillSegment.reserve(buffer, keyStart, keyEnd, hash, flags, (int) dataLength);
+            if (fillHandle < 0) {
+                send(context, OUT_OF_MEMORY);
+            }
+        }
+        return true;
+    }
+
+    /** Copies or skips what arrived of a set's data; returns false if more has to be read. */
+    private boolean data(ConnectionContext context, int position) {
+        int length = (int) Math.min(fillRemaining, position - readIndex);
+        if (fillHandle >= 0 && length > 0) {
+            fillSegment.fill(fillHandle, fillWritten, buffer, readIndex, length);
+        }
+        fillWritten += length;
+        fillRemaining -= length;
+        readIndex = scanIndex = readIndex + length;
+        if (fillRemaining > 0) {
+            return false;
+        }
+
+        readingData = false;
+        if (fillHandle >= 0) {
+            int handle = fillHandle;
+            fillHandle = -1;
+            if (!fillSegment.commit(handle)) {
+                send(context, BAD_CHUNK);
+            } else if (!fillNoreply) {
+                send(context, STORED);
+            }
+        }
+        return true;
+    }
+
+    private void delete(ConnectionContext context, int from, int end) {
+        int keyStart = nextToken(from, end);
+        int keyEnd = tokenEnd;
+        if (keyStart < 0 || keyEnd - keyStart > OffHeapCache.MAX_KEY_LENGTH) {
+            send(context, BAD_FORMAT);
+            return;
+        }
+        int noreplyStart = nextToken(keyEnd, end);
+        boolean noreply = noreplyStart >= 0 && Ascii.equals(buffer, noreplyStart, tokenEnd, NOREPLY);
+        int hash = OffHeapCache.hash(buffer, keyStart, keyEnd);
+        boolean deleted = cache.segment(hash).delete(buffer, keyStart, keyEnd, hash);
+        if (!noreply) {
+            send(context, deleted ? DELETED : NOT_FOUND);
+        }
+    }
+
+    // Diagnostics, not the hot path: building the lines as Strings is fine here.
+    private void stats(ConnectionContext context) {
+        long[] values = cache.stats();
+        StringBuilder stats = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            stats.append("STAT ").append(OffHeapCache.STATS[i]).append(' ').append(values[i]).append("\r\n");
+        }
+        send(context, Ascii.bytes(stats.append("END\r\n").toString()));
+    }
+
+    /** Finds the next space-separated token in {@code [from, end)}: returns its start and sets {@link #tokenEnd}. */
+    private int nextToken(int from, int end) {
+        int start = from;
+        while (start < end && buffer.get(start) == ' ') {
+            start++;
+        }
+        if (start == end) {
+            return -1;
+        }
+        int stop = start;
+        while (stop < end && buffer.get(stop) != ' ') {
+            stop++;
+        }
+        tokenEnd = stop;
+        return start;
+    }
+
+    /** Parses the next token as a non-negative decimal; returns -1 if it is missing or is not one. */
+    private long number(int from, int end) {
+        int start = nextToken(from, end);
+        if (start < 0 || tokenEnd - start > 18) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < tokenEnd; i++) {
+            byte digit = buffer.get(i);
+            if (digit < '0' || digit > '9') {
+                return -1;
+            }
+            value = value * 10 + (digit - '0');
+        }
+        return value;
+    }
+
+    private void send(ConnectionContext context, byte[] reply) {
+        context.send(BufferPool.SHARED.acquire(reply.length).put(reply).flip());
+    }
+
+    private void compact() {
+        if (readIndex == 0) {
+            return;
+        }
+        Ascii.compact(buffer, readIndex);
+        scanIndex -= readIndex;
+        readIndex = 0;
+    }
+}
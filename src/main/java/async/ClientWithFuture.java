@@ -1,8 +1,13 @@
 package async;
 
+import java.io.EOFException;
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 
@@ -11,7 +16,19 @@ import java.util.concurrent.Future;
  * @see <a href="https://www.baeldung.com/java-nio2-async-socket-channel#the-client">The Client</a>
  */
 public class ClientWithFuture {
+    private final FrameCodec codec = FrameCodec.fromSystemProperty();
+
     public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("load")) {
+            // Load-generator mode, see LoadGenerator for its settings.
+            LoadGenerator.fromSystemProperties(new InetSocketAddress("localhost", 4555)).run();
+            return;
+        }
+        if (args.length > 0 && args[0].equals("async")) {
+            // Many requests at once from this one thread, see EchoClient.
+            new ClientWithFuture().runAsync(Integer.getInteger("nio2lab.client.requests", 10_000));
+            return;
+        }
         new ClientWithFuture().run();
     }
 
@@ -32,33 +49,65 @@ public class ClientWithFuture {
         System.out.println("Server response: <<" + serverResp + ">>");
     }
 
-    public String sendMessage(AsynchronousSocketChannel client, String message) throws ExecutionException, InterruptedException {
-        byte[] byteMsg = new String(message).getBytes();
-        ByteBuffer buffer = ByteBuffer.wrap(byteMsg);
-        Future<Integer> writeResult = client.write(buffer);
-
-        // do some computation
-
-        writeResult.get();
+    /** Sends {@code requests} messages through an {@link EchoClient} without waiting in between, then checks them. */
+    void runAsync(int requests) throws Exception {
+        InetSocketAddress hostAddress = new InetSocketAddress("localhost", 4555);
+        try (EchoClient client = EchoClient.fromSystemProperties()) {
+            long start = System.nanoTime();
+            List<CompletableFuture<String>> responses = new ArrayList<>(requests);
+            for (int i = 0; i < requests; i++) {
+                responses.add(client.sendMessage(hostAddress, "Hello " + i + " from EchoClient!"));
+            }
+            CompletableFuture.allOf(responses.toArray(new CompletableFuture<?>[0])).get();
+            long millis = (System.nanoTime() - start) / 1_000_000;
+
+            int mismatches = 0;
+            for (int i = 0; i < requests; i++) {
+                if (!responses.get(i).get().startsWith("Hello " + i + " from EchoClient!")) {
+                    mismatches++;
+                }
+            }
+            System.out.println(requests + " responses in " + millis + " ms, " + mismatches + " mismatched, e.g. <<"
+                    + responses.get(requests - 1).get() + ">>");
+        }
+    }
 
+    public String sendMessage(AsynchronousSocketChannel client, String message) throws IOException, ExecutionException, InterruptedException {
+        byte[] byteMsg = message.getBytes();
+        ByteBuffer buffer = ByteBuffer.allocate(codec.encodedLength(byteMsg.length));
+        codec.encode(byteMsg, buffer);
         buffer.flip();
-        Future<Integer> readResult = client.read(buffer);
-
-        // do some computation
-
-        System.out.println("Waiting for msg1");
-        readResult.get();
-        String echo = new String(buffer.array()).trim();
+        while (buffer.hasRemaining()) {
+            Future<Integer> writeResult = client.write(buffer);
+
+            // do some computation
+
+            writeResult.get();
+        }
+
+        // The server answers with two frames, the echo and its suffix, which may arrive in any number of reads.
+        List<String> frames = new ArrayList<>(2);
+        FrameDecoder decoder = new FrameDecoder(codec);
+        try {
+            while (frames.size() < 2) {
+                Future<Integer> readResult = client.read(decoder.buffer());
+
+                // do some computation
+
+                System.out.println("Waiting for msg" + (frames.size() + 1));
+                if (readResult.get() < 0) {
+                    throw new EOFException("Server closed the connection after " + frames.size() + " frame(s)");
+                }
+                decoder.decode((chunks, count, length, received) -> received.add(new String(FrameDecoder.toBytes(chunks, count, length))), frames);
+            }
+        } finally {
+            decoder.release();
+        }
+
+        String echo = frames.get(0);
         System.out.println("echo=" + echo);
-        buffer.clear();
-
-        ByteBuffer buffer2 = ByteBuffer.allocate(128);
-        Future<Integer> readResult2 = client.read(buffer2);
-        System.out.println("Waiting for msg2");
-        readResult2.get();
-        String echo2 = new String(buffer2.array()).trim();
+        String echo2 = frames.get(1);
         System.out.println("echo2=" + echo2);
-        buffer2.clear();
 
         return echo + echo2;
     }
@@ -0,0 +1,269 @@
+package async;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Everything one client connection of {@link ServerWithCompletionHandler} needs, passed as the
+ * {@link java.nio.channels.CompletionHandler} attachment.
+ * <p>
+ * It replaces the {@code Map<String, Object>} attachment: the "action" string becomes {@link State} and the read side
+ * is a {@link Protocol}, e.g. a {@link FrameDecoder} for echo, whose buffer comes from the {@link BufferPool} once per
+ * connection, so a completion does no hashing, no casts and no allocation.
+ * <p>
+ * Reads and writes run independently: a read queues its reply in the {@link OutboundQueue} and immediately reads again,
+ * while at most one gathering write drains everything queued so far. Once more than
+ * {@link ServerLimits#HIGH_WATERMARK} bytes are queued the connection stops reading until the writes bring it below
+ * {@link ServerLimits#LOW_WATERMARK}. The monitor of this object guards the queue and the flags below, since the read
+ * and the write completion may run on different threads.
+ * <p>
+ * The context is also the connection's node on the {@link TimeoutWheel}: arming a read or a write renews its deadline,
+ * and the {@link Journal.Ack} of its journaled frames: their replies count against the watermarks from the start, but
+ * are only queued once the journal made the frames durable.
+ */
+final class ConnectionContext extends TimeoutWheel.Timeout implements Journal.Ack {
+    enum State {
+        OPEN,
+        // The client stopped sending, close once the queued replies are out.
+        CLOSING,
+        CLOSED
+    }
+
+    final AsynchronousSocketChannel channel;
+    final Protocol protocol;
+    // When the connection was accepted, until its first bytes arrive; then 0. Only the read path touches it.
+    long acceptedNanos;
+    private final Shard shard;
+    private final ServerLimits limits;
+
+    private final OutboundQueue outbound = new OutboundQueue();
+    private State state = State.OPEN;
+    // True from arming a read until the read path is done with the protocol's buffer, which may be well after the completion.
+    private boolean reading;
+    private boolean writing;
+    // Reading stopped because too many reply bytes are queued.
+    private boolean readPaused;
+    // Reply bytes waiting for the journal, not queued yet.
+    private long journalBytes;
+
+    ConnectionContext(AsynchronousSocketChannel channel, Protocol protocol, Shard shard) {
+        this.channel = channel;
+        this.protocol = protocol;
+        this.shard = shard;
+        this.limits = shard.limits;
+        this.acceptedNanos = System.nanoTime();
+        TimeoutWheel.SHARED.register(this);
+    }
+
+    /**
+     * Arms the next read into the protocol's buffer, unless the connection is going away or has too much queued.
+     * Returns true when the caller must instead let the protocol go on right away: it has more to send, and no write
+     * is in flight whose completion would bring it back.
+     */
+    boolean read() {
+        synchronized (this) {
+            if (state != State.OPEN) {
+                stopReading();
+                return false;
+            }
+            boolean moreOutput = protocol.hasMoreOutput();
+            if (outbound.pendingBytes() + journalBytes > ServerLimits.HIGH_WATERMARK || moreOutput) {
+                if (!writing && journalBytes == 0) {
+                    return true;
+                }
+                // writeCompleted resumes reading once the queue drained below the low watermark; a journaled reply
+                // arriving meanwhile starts the write whose completion does that.
+                readPaused = true;
+                stopReading();
+                clearRead();
+                return false;
+            }
+            reading = true;
+        }
+        renewRead(protocol.hasPartialRequest());
+        channel.read(protocol.buffer(), this, ReadHandler.INSTANCE);
+        return false;
+    }
+
+    /** Called first by every read completion; returns false when the connection was closed meanwhile. */
+    synchronized boolean readCompleted() {
+        if (state == State.CLOSED) {
+            stopReading();
+            return false;
+        }
+        return true;
+    }
+
+    /** The read path gives up on a failed read or an undecodable frame. */
+    synchronized void readFailed() {
+        stopReading();
+        close();
+    }
+
+    /** Queues a pooled buffer for writing, it is released once written. Call {@link #flush()} to send it. */
+    void send(ByteBuffer reply) {
+        send(reply, null, 0);
+    }
+
+    /** Queues a buffer that goes back to {@code owner} once written; a pooled one when {@code owner} is null. */
+    synchronized void send(ByteBuffer reply, OutboundQueue.Owner owner, int token) {
+        if (state == State.CLOSED) {
+            if (owner == null) {
+                BufferPool.SHARED.release(reply);
+            } else {
+                owner.release(reply, token);
+            }
+            return;
+        }
+        limits.bytesQueued(reply.remaining());
+        ServerMetrics.SHARED.pendingWriteBytes(reply.remaining());
+        outbound.add(reply, owner, token);
+    }
+
+    /** Counts a reply held back for the journal against the watermarks; {@link #journaled} queues it later. */
+    synchronized void awaitJournal(ByteBuffer reply) {
+        journalBytes += reply.remaining();
+    }
+
+    /** The journal made the frame of {@code reply} durable: sends the reply. Closes the connection if it never will. */
+    @Override
+    public void journaled(ByteBuffer reply, boolean durable) {
+        synchronized (this) {
+            journalBytes -= reply.remaining();
+            if (!durable) {
+                BufferPool.SHARED.release(reply);
+                close();
+                return;
+            }
+            send(reply);
+        }
+        flush();
+    }
+
+    /** Starts a gathering write of everything queued, unless one is already in flight; its completion continues. */
+    void flush() {
+        ByteBuffer[] buffers;
+        int offset;
+        int length;
+        synchronized (this) {
+            if (writing || outbound.isEmpty() || state == State.CLOSED) {
+                return;
+            }
+            writing = true;
+            renewWrite();
+            buffers = outbound.array();
+            offset = outbound.offset();
+            length = outbound.length();
+        }
+        channel.write(buffers, offset, length, 0L, TimeUnit.MILLISECONDS, this, WriteHandler.INSTANCE);
+    }
+
+    /**
+     * Called by every write completion before it flushes again. Returns true when reading was paused and may resume,
+     * the caller must then go through {@link #resumeReading()}.
+     */
+    synchronized boolean writeCompleted(long bytes) {
+        writing = false;
+        clearWrite();
+        if (state == State.CLOSED) {
+            releaseIdleResources();
+            return false;
+        }
+        outbound.written(bytes);
+        limits.bytesWritten(bytes);
+        ServerMetrics.SHARED.pendingWriteBytes(-bytes);
+        if (state == State.CLOSING && outbound.isEmpty() && journalBytes == 0) {
+            close();
+        }
+        if (readPaused && state == State.OPEN && outbound.pendingBytes() + journalBytes <= ServerLimits.LOW_WATERMARK) {
+            readPaused = false;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Takes the read side back after a pause, before the protocol gets to continue, e.g. to stream more of a response;
+     * returns false if the connection is going away meanwhile.
+     */
+    synchronized boolean resumeReading() {
+        if (state != State.OPEN) {
+            return false;
+        }
+        reading = true;
+        return true;
+    }
+
+    /** Reply bytes queued and not written yet; a protocol streaming a response tops the queue up to the watermark. */
+    synchronized long pendingBytes() {
+        return outbound.pendingBytes();
+    }
+
+    synchronized void writeFailed() {
+        writing = false;
+        if (state == State.CLOSED) {
+            releaseIdleResources();
+        } else {
+            close();
+        }
+    }
+
+    /**
+     * The read path saw end-of-stream: closes once everything queued so far is written. Only the write timeout
+     * governs the drain, a slow one must not be reaped as idle.
+     */
+    synchronized void shutdownAfterFlush() {
+        stopReading();
+        if (state != State.OPEN) {
+            return;
+        }
+        state = State.CLOSING;
+        clearRead();
+        // Replies still waiting for the journal are sent when it acknowledges them, and their write closes.
+        if (!writing && outbound.isEmpty() && journalBytes == 0) {
+            close();
+        }
+    }
+
+    @Override
+    protected void expired(TimeoutWheel.Kind kind) {
+        close();
+    }
+
+    synchronized void close() {
+        if (state == State.CLOSED) {
+            return;
+        }
+        state = State.CLOSED;
+        cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Closing clientChannel failed");
+        }
+        shard.connectionClosed();
+        ServerMetrics.SHARED.connectionClosed();
+        releaseIdleResources();
+    }
+
+    private void stopReading() {
+        reading = false;
+        if (state == State.CLOSED) {
+            releaseIdleResources();
+        }
+    }
+
+    // Buffers a pending read or write still points at are released by that operation's completion instead.
+    private void releaseIdleResources() {
+        if (!reading) {
+            protocol.release();
+        }
+        if (!writing) {
+            long dropped = outbound.releaseAll();
+            limits.bytesWritten(dropped);
+            ServerMetrics.SHARED.pendingWriteBytes(-dropped);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package async;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Frames as the payload followed by a single delimiter byte, {@code '\n'} for {@link #LINE}.
+ * Payloads must not contain the delimiter, nothing is escaped.
+ */
+final class DelimiterCodec implements FrameCodec {
+    static final DelimiterCodec LINE = new DelimiterCodec((byte) '\n');
+
+    private final byte delimiter;
+
+    DelimiterCodec(byte delimiter) {
+        this.delimiter = delimiter;
+    }
+
+    @Override
+    public int headerLength() {
+        return 0;
+    }
+
+    @Override
+    public int delimiterLength() {
+        return 1;
+    }
+
+    @Override
+    public int payloadLength(ByteBuffer in, int index) {
+        throw new UnsupportedOperationException("Delimited frames have no length header");
+    }
+
+    @Override
+    public int indexOfDelimiter(ByteBuffer in, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (in.get(i) == delimiter) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void encodeHeader(int payloadLength, ByteBuffer out) {
+    }
+
+    @Override
+    public void encodeDelimiter(ByteBuffer out) {
+        out.put(delimiter);
+    }
+}
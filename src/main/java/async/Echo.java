@@ -0,0 +1,21 @@
+package async;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The reply both servers send for every frame they receive: the frame itself, then a frame with the server's suffix.
+ */
+final class Echo {
+    static final byte[] SUFFIX = ", Server: ServerWithFurure".getBytes();
+
+    private Echo() {
+    }
+
+    /** Encodes the echo and the suffix frame into one pooled buffer, flipped and ready to write. */
+    static ByteBuffer reply(FrameCodec codec, ByteBuffer[] chunks, int count, int length) {
+        ByteBuffer reply = BufferPool.SHARED.acquire(codec.encodedLength(length) + codec.encodedLength(SUFFIX.length));
+        codec.encode(chunks, count, length, reply);
+        codec.encode(SUFFIX, reply);
+        return reply.flip();
+    }
+}
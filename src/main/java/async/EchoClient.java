@@ -0,0 +1,385 @@
+package async;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.ShutdownChannelGroupException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A non-blocking client for the echo servers: {@link #sendMessage} returns a {@link CompletableFuture} right away, and
+ * CompletionHandlers on the client's own channel group do the rest, so a few threads can keep thousands of requests
+ * in flight.
+ * <p>
+ * Each endpoint gets up to {@code connectionsPerEndpoint} connections, opened on first use and then kept open; requests
+ * go round-robin over them, and a connection that failed is replaced by the next request that picks its slot. Many
+ * requests share one connection: each carries its id as the first {@value #ID_LENGTH} payload bytes (hex digits, so
+ * line framing works too), and the echo brings it back, so a response finds its future whatever order it arrives in.
+ * Requests sent while a write is in flight are queued, like a server's replies in {@link OutboundQueue}, and go out
+ * together in the next gathering write.
+ * <p>
+ * The futures complete on the client's threads: dependent stages that block hold up every connection of that thread.
+ * Nothing bounds the requests in flight except the caller.
+ */
+public final class EchoClient implements AutoCloseable {
+    static final int ID_LENGTH = 16;
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private final FrameCodec codec;
+    private final int connectionsPerEndpoint;
+    private final AsynchronousChannelGroup group;
+    private final ConcurrentHashMap<InetSocketAddress, Endpoint> endpoints = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong();
+    private volatile boolean closed;
+
+    public EchoClient(FrameCodec codec, int connectionsPerEndpoint, int threads) throws IOException {
+        if (connectionsPerEndpoint < 1 || threads < 1) {
+            throw new IllegalArgumentException("connectionsPerEndpoint and threads must be positive");
+        }
+        this.codec = codec;
+        this.connectionsPerEndpoint = connectionsPerEndpoint;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.group = AsynchronousChannelGroup.withFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task, "EchoClient-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * A client configured by {@code nio2lab.codec}, {@code nio2lab.client.connections} (connections per endpoint,
+     * default 4) and {@code nio2lab.client.threads} (default 2).
+     */
+    public static EchoClient fromSystemProperties() throws IOException {
+        return new EchoClient(FrameCodec.fromSystemProperty(),
+                Integer.getInteger("nio2lab.client.connections", 4),
+                Integer.getInteger("nio2lab.client.threads", 2));
+    }
+
+    /**
+     * Sends {@code message} to the echo server at {@code endpoint}. The future completes with what
+     * {@link ClientWithFuture#sendMessage} returns, the echo followed by the server's suffix, or exceptionally with an
+     * {@link IOException} if the connection failed first.
+     */
+    public CompletableFuture<String> sendMessage(InetSocketAddress endpoint, String message) {
+        CompletableFuture<String> response = new CompletableFuture<>();
+        if (closed) {
+            response.completeExceptionally(new AsynchronousCloseException());
+            return response;
+        }
+        byte[] bytes = message.getBytes();
+        long id = nextId.getAndIncrement();
+        ByteBuffer request = BufferPool.SHARED.acquire(codec.encodedLength(ID_LENGTH + bytes.length));
+        codec.encodeHeader(ID_LENGTH + bytes.length, request);
+        for (int shift = (ID_LENGTH - 1) * 4; shift >= 0; shift -= 4) {
+            request.put(HEX_DIGITS[(int) (id >>> shift) & 0xF]);
+        }
+        request.put(bytes);
+        codec.encodeDelimiter(request);
+        request.flip();
+        endpoints.computeIfAbsent(endpoint, Endpoint::new).connection().send(id, request, response);
+        return response;
+    }
+
+    /** Closes every connection, failing the requests still in flight, and stops the client's threads. */
+    @Override
+    public void close() {
+        closed = true;
+        for (Endpoint endpoint : endpoints.values()) {
+            endpoint.close();
+        }
+        group.shutdown();
+    }
+
+    /** The id in the first {@link #ID_LENGTH} bytes of an echoed payload, or -1 if there is none. */
+    private static long parseId(byte[] payload) {
+        if (payload.length < ID_LENGTH) {
+            return -1;
+        }
+        long id = 0;
+        for (int i = 0; i < ID_LENGTH; i++) {
+            int digit = Character.digit(payload[i], 16);
+            if (digit < 0) {
+                return -1;
+            }
+            id = id << 4 | digit;
+        }
+        return id;
+    }
+
+    /** The connection pool of one server. */
+    private final class Endpoint {
+        private final InetSocketAddress address;
+        private final AtomicReferenceArray<Connection> connections = new AtomicReferenceArray<>(connectionsPerEndpoint);
+        private final AtomicInteger next = new AtomicInteger();
+
+        Endpoint(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        /** The next connection in turn, opening it if its slot is empty or its connection failed. */
+        Connection connection() {
+            int slot = Math.floorMod(next.getAndIncrement(), connections.length());
+            while (true) {
+                Connection connection = connections.get(slot);
+                if (connection != null && !connection.isFailed()) {
+                    return connection;
+                }
+                Connection fresh = new Connection(address);
+                if (connections.compareAndSet(slot, connection, fresh)) {
+                    fresh.connect();
+                    return fresh;
+                }
+            }
+        }
+
+        void close() {
+            for (int i = 0; i < connections.length(); i++) {
+                Connection connection = connections.get(i);
+                if (connection != null) {
+                    connection.fail(new AsynchronousCloseException());
+                }
+            }
+        }
+    }
+
+    /**
+     * One pooled connection. Sends and the write completion share the queue and the pending requests under the
+     * monitor; the read side, one read at a time, owns the decoder.
+     */
+    private final class Connection implements FrameDecoder.FrameHandler<Connection> {
+        private final InetSocketAddress address;
+        // Set by connect(), read by fail() on whichever thread fails the connection.
+        private volatile AsynchronousSocketChannel channel;
+
+        // Guarded by this.
+        private final OutboundQueue outbound = new OutboundQueue();
+        private final HashMap<Long, CompletableFuture<String>> pending = new HashMap<>();
+        private boolean connected;
+        private boolean writing;
+        private volatile Throwable failure;
+
+        // Owned by the read side: the decoder, created once connected so that a connection losing the race for its
+        // slot holds no pooled buffer, and the response whose echo arrived and whose suffix frame comes next.
+        private FrameDecoder decoder;
+        private CompletableFuture<String> echoed;
+        private String echo;
+
+        Connection(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        boolean isFailed() {
+            return failure != null;
+        }
+
+        void connect() {
+            try {
+                channel = AsynchronousSocketChannel.open(group);
+                // A close() that went over the slots before this connection took its one cannot fail it: do it here.
+                if (closed) {
+                    fail(new AsynchronousCloseException());
+                    return;
+                }
+                channel.connect(address, this, Connected.INSTANCE);
+            } catch (IOException | ShutdownChannelGroupException e) {
+                // The latter when close() shut the group down meanwhile.
+                fail(e);
+            }
+        }
+
+        void send(long id, ByteBuffer request, CompletableFuture<String> response) {
+            boolean queued;
+            synchronized (this) {
+                queued = failure == null;
+                if (queued) {
+                    pending.put(id, response);
+                    outbound.add(request);
+                }
+            }
+            if (!queued) {
+                BufferPool.SHARED.release(request);
+                response.completeExceptionally(new IOException("Connection to " + address + " failed", failure));
+                return;
+            }
+            flush();
+        }
+
+        /** Writes everything queued in one gathering write, unless one is in flight: its completion comes back here. */
+        void flush() {
+            ByteBuffer[] buffers;
+            int offset;
+            int length;
+            synchronized (this) {
+                if (!connected || writing || outbound.isEmpty() || failure != null) {
+                    return;
+                }
+                writing = true;
+                buffers = outbound.array();
+                offset = outbound.offset();
+                length = outbound.length();
+            }
+            channel.write(buffers, offset, length, 0L, TimeUnit.MILLISECONDS, this, Written.INSTANCE);
+        }
+
+        void connected() {
+            decoder = new FrameDecoder(codec);
+            synchronized (this) {
+                connected = true;
+            }
+            flush();
+            read();
+        }
+
+        void read() {
+            channel.read(decoder.buffer(), this, Read.INSTANCE);
+        }
+
+        void writeCompleted(long bytes) {
+            synchronized (this) {
+                writing = false;
+                if (failure != null) {
+                    outbound.releaseAll();
+                    return;
+                }
+                outbound.written(bytes);
+            }
+            flush();
+        }
+
+        void writeFailed(Throwable e) {
+            fail(e);
+            synchronized (this) {
+                writing = false;
+                outbound.releaseAll();
+            }
+        }
+
+        /** The read side is done with this connection: fails it and gives the decoder's buffers back. */
+        void readFailed(Throwable e) {
+            fail(e);
+            CompletableFuture<String> response = echoed;
+            echoed = null;
+            if (response != null) {
+                response.completeExceptionally(new IOException("Connection to " + address + " failed", e));
+            }
+            if (decoder != null) {
+                decoder.release();
+            }
+        }
+
+        @Override
+        public void onFrame(ByteBuffer[] chunks, int count, int length, Connection connection) {
+            byte[] payload = FrameDecoder.toBytes(chunks, count, length);
+            if (echoed == null) {
+                // The echo: the request's id, then its message.
+                long id = parseId(payload);
+                synchronized (this) {
+                    echoed = pending.remove(id);
+                }
+                if (echoed == null) {
+                    throw new IllegalStateException("No request is waiting for a response with id " + id);
+                }
+                echo = new String(payload, ID_LENGTH, payload.length - ID_LENGTH);
+            } else {
+                // The server's suffix, completing the response.
+                CompletableFuture<String> response = echoed;
+                echoed = null;
+                response.complete(echo + new String(payload));
+            }
+        }
+
+        /** Fails every request still waiting and closes the channel; the next request for this slot reconnects. */
+        void fail(Throwable e) {
+            List<CompletableFuture<String>> failed;
+            synchronized (this) {
+                if (failure != null) {
+                    return;
+                }
+                failure = e;
+                failed = new ArrayList<>(pending.values());
+                pending.clear();
+                if (!writing) {
+                    outbound.releaseAll();
+                }
+            }
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException closeFailure) {
+                    System.err.println("Closing clientChannel to " + address + " failed: " + closeFailure);
+                }
+            }
+            for (CompletableFuture<String> response : failed) {
+                response.completeExceptionally(new IOException("Connection to " + address + " failed", e));
+            }
+        }
+    }
+
+    private static final class Connected implements CompletionHandler<Void, Connection> {
+        static final Connected INSTANCE = new Connected();
+
+        @Override
+        public void completed(Void result, Connection connection) {
+            connection.connected();
+        }
+
+        @Override
+        public void failed(Throwable e, Connection connection) {
+            connection.readFailed(e);
+        }
+    }
+
+    private static final class Read implements CompletionHandler<Integer, Connection> {
+        static final Read INSTANCE = new Read();
+
+        @Override
+        public void completed(Integer result, Connection connection) {
+            if (result < 0) {
+                connection.readFailed(new EOFException("The server closed the connection"));
+                return;
+            }
+            try {
+                connection.decoder.decode(connection, connection);
+            } catch (ProtocolException | IllegalStateException e) {
+                connection.readFailed(e);
+                return;
+            }
+            connection.read();
+        }
+
+        @Override
+        public void failed(Throwable e, Connection connection) {
+            connection.readFailed(e);
+        }
+    }
+
+    private static final class Written implements CompletionHandler<Long, Connection> {
+        static final Written INSTANCE = new Written();
+
+        @Override
+        public void completed(Long result, Connection connection) {
+            connection.writeCompleted(result);
+        }
+
+        @Override
+        public void failed(Throwable e, Connection connection) {
+            connection.writeFailed(e);
+        }
+    }
+}
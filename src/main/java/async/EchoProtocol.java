@@ -0,0 +1,56 @@
+package async;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * The original protocol: every frame is answered with an {@link Echo} reply. With the {@link Journal} on, the reply is
+ * held back until the journal made the frame durable; the frame is journaled straight from its copy in the reply.
+ */
+final class EchoProtocol implements Protocol, FrameDecoder.FrameHandler<ConnectionContext> {
+    private final FrameCodec codec;
+    private final FrameDecoder decoder;
+    private final Journal journal = Journal.SHARED;
+
+    EchoProtocol(FrameCodec codec) {
+        this.codec = codec;
+        this.decoder = new FrameDecoder(codec);
+    }
+
+    @Override
+    public ByteBuffer buffer() {
+        return decoder.buffer();
+    }
+
+    @Override
+    public boolean hasPartialRequest() {
+        return decoder.hasPartialFrame();
+    }
+
+    @Override
+    public boolean process(ConnectionContext context) throws ProtocolException {
+        decoder.decode(this, context);
+        return true;
+    }
+
+    @Override
+    public void onFrame(ByteBuffer[] chunks, int count, int length, ConnectionContext context) {
+        ByteBuffer reply = Echo.reply(codec, chunks, count, length);
+        if (journal == null) {
+            context.send(reply);
+            return;
+        }
+        context.awaitJournal(reply);
+        if (length > journal.maxEntryLength()) {
+            // It could never be made durable: answered like a failed journal, by closing the connection.
+            context.journaled(reply, false);
+            return;
+        }
+        journal.append(reply, codec.headerLength(), length, context);
+    }
+
+    @Override
+    public void release() {
+        decoder.release();
+    }
+}
@@ -0,0 +1,55 @@
+package async;
+
+import java.nio.ByteBuffer;
+
+/**
+ * How messages are delimited on the wire. TCP is a byte stream: one read may hold half a message or several, so both
+ * servers and the client cut the stream into frames with a {@link FrameDecoder} driven by one of these codecs.
+ * <p>
+ * A codec is either length-prefixed ({@link #headerLength()} {@code > 0}, the header tells the payload length) or
+ * delimiter-based ({@link #delimiterLength()} {@code > 0}, the payload runs until the delimiter byte).
+ */
+public interface FrameCodec {
+    /** The codec selected by {@code -Dnio2lab.codec}: {@code length} (default) or {@code line}. */
+    static FrameCodec fromSystemProperty() {
+        String name = System.getProperty("nio2lab.codec", "length");
+        return switch (name) {
+            case "length" -> LengthPrefixedCodec.INSTANCE;
+            case "line" -> DelimiterCodec.LINE;
+            default -> throw new IllegalArgumentException("Unknown codec: " + name);
+        };
+    }
+
+    int headerLength();
+
+    int delimiterLength();
+
+    /** Length-prefixed codecs: the payload length announced by the header at {@code index}. */
+    int payloadLength(ByteBuffer in, int index);
+
+    /** Delimiter-based codecs: the index of the first delimiter in {@code [from, to)}, or -1. */
+    int indexOfDelimiter(ByteBuffer in, int from, int to);
+
+    void encodeHeader(int payloadLength, ByteBuffer out);
+
+    void encodeDelimiter(ByteBuffer out);
+
+    default int encodedLength(int payloadLength) {
+        return headerLength() + payloadLength + delimiterLength();
+    }
+
+    default void encode(byte[] payload, ByteBuffer out) {
+        encodeHeader(payload.length, out);
+        out.put(payload);
+        encodeDelimiter(out);
+    }
+
+    /** Encodes a payload split over {@code chunks[0..count)}, as handed out by {@link FrameDecoder}. */
+    default void encode(ByteBuffer[] chunks, int count, int length, ByteBuffer out) {
+        encodeHeader(length, out);
+        for (int i = 0; i < count; i++) {
+            out.put(chunks[i]);
+        }
+        encodeDelimiter(out);
+    }
+}
@@ -0,0 +1,286 @@
+package async;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Cuts the bytes read from one connection into frames, as defined by a {@link FrameCodec}.
+ * <p>
+ * Reads go into {@link #buffer()}, a pooled cumulation buffer that keeps whatever is left of a partial frame between
+ * reads. {@link #decode(FrameHandler, Object)} then hands every complete frame to the handler as a view into that
+ * buffer, so one read can yield many frames and none of them is copied.
+ * <p>
+ * A frame larger than the cumulation buffer is assembled from chunks: when it fills the buffer, the full buffer is set
+ * aside as a chunk and a fresh pooled buffer, twice as large up to the pool's largest class, takes its place; the frame
+ * is finally handed out as the list of its chunks. A length-prefixed frame ends where its header says, a delimited one
+ * at its delimiter. Either way no single buffer grows beyond what the pool holds, however long the frame, and the
+ * decoder goes back to a buffer of the usual size once the frame is consumed.
+ * <p>
+ * Not thread-safe; a connection has at most one read in flight.
+ */
+public final class FrameDecoder {
+    /** Receives decoded frames. */
+    public interface FrameHandler<A> {
+        /**
+         * The payload is {@code length} bytes spread over the {@code position()..limit()} of {@code chunks[0..count)},
+         * usually a single chunk. The buffers are only valid during this call: copy what has to outlive it.
+         */
+        void onFrame(ByteBuffer[] chunks, int count, int length, A attachment);
+    }
+
+    static final int BUFFER_SIZE = Integer.getInteger("nio2lab.frame.bufferSize", 1024);
+    static final int MAX_FRAME_LENGTH = Integer.getInteger("nio2lab.frame.maxLength", 16 << 20);
+
+    private final FrameCodec codec;
+    private final int bufferSize;
+    private final int maxFrameLength;
+    private final BufferPool pool;
+
+    // The cumulation buffer, always in "write mode": undecoded bytes are [readIndex, position).
+    private ByteBuffer buffer;
+    // A duplicate of buffer, repositioned to hand out each frame without touching buffer itself.
+    private ByteBuffer view;
+    private final ByteBuffer[] single = new ByteBuffer[1];
+    private int readIndex;
+    // Delimiter codecs: where the next search for the delimiter starts.
+    private int scanIndex;
+
+    // The earlier parts of a frame that did not fit into buffer, each a former cumulation buffer.
+    private ByteBuffer[] chunks = new ByteBuffer[4];
+    private int chunkCount;
+    private int compositeLength;
+    // Length-prefixed codecs: the payload length of the frame being assembled from chunks.
+    private int compositeTarget;
+
+    public FrameDecoder(FrameCodec codec) {
+        this(codec, BUFFER_SIZE, MAX_FRAME_LENGTH);
+    }
+
+    public FrameDecoder(FrameCodec codec, int bufferSize, int maxFrameLength) {
+        this(codec, bufferSize, maxFrameLength, BufferPool.SHARED);
+    }
+
+    FrameDecoder(FrameCodec codec, int bufferSize, int maxFrameLength, BufferPool pool) {
+        this.codec = codec;
+        this.bufferSize = bufferSize;
+        this.maxFrameLength = maxFrameLength;
+        this.pool = pool;
+        newBuffer(bufferSize);
+    }
+
+    /** The buffer the next read must go into. It changes when a large frame is being assembled. */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /** True while part of a frame has been read but not decoded yet. */
+    public boolean hasPartialFrame() {
+        return chunkCount > 0 || (buffer != null && buffer.position() > readIndex);
+    }
+
+    /**
+     * Hands every complete frame read so far to {@code handler}, in order, and keeps the rest for the next read.
+     *
+     * @throws ProtocolException if a frame is longer than the configured maximum
+     */
+    public <A> void decode(FrameHandler<A> handler, A attachment) throws ProtocolException {
+        boolean progress = true;
+        while (progress) {
+            progress = chunkCount > 0 ? continueComposite(handler, attachment) : decodeInBuffer(handler, attachment);
+        }
+        compact();
+    }
+
+    /** Gives the pooled buffers back. The decoder must not be used afterwards. */
+    public void release() {
+        if (buffer == null) {
+            return;
+        }
+        pool.release(buffer);
+        buffer = null;
+        view = null;
+        for (int i = 0; i < chunkCount; i++) {
+            pool.release(chunks[i]);
+            chunks[i] = null;
+        }
+        chunkCount = 0;
+    }
+
+    /** Copies a frame out of its chunks without moving their positions; for callers that want a {@code byte[]}. */
+    public static byte[] toBytes(ByteBuffer[] chunks, int count, int length) {
+        byte[] bytes = new byte[length];
+        int offset = 0;
+        for (int i = 0; i < count; i++) {
+            ByteBuffer chunk = chunks[i];
+            chunk.get(chunk.position(), bytes, offset, chunk.remaining());
+            offset += chunk.remaining();
+        }
+        return bytes;
+    }
+
+    private <A> boolean decodeInBuffer(FrameHandler<A> handler, A attachment) throws ProtocolException {
+        int position = buffer.position();
+        int available = position - readIndex;
+        int headerLength = codec.headerLength();
+
+        if (headerLength > 0) {
+            if (available < headerLength) {
+                return false;
+            }
+            int length = checkLength(codec.payloadLength(buffer, readIndex));
+            int frameLength = headerLength + length;
+            if (available >= frameLength) {
+                int start = readIndex + headerLength;
+                readIndex += frameLength;
+                deliver(start, start + length, handler, attachment);
+                return true;
+            }
+            if (readIndex == 0 && position == buffer.capacity()) {
+                // The frame fills the buffer and goes on: assemble it from chunks, without its header.
+                compositeTarget = length;
+                detach(headerLength);
+                return true;
+            }
+            return false;
+        }
+
+        int delimiter = codec.indexOfDelimiter(buffer, Math.max(scanIndex, readIndex), position);
+        if (delimiter >= 0) {
+            int start = readIndex;
+            checkLength(delimiter - start);
+            readIndex = scanIndex = delimiter + codec.delimiterLength();
+            deliver(start, delimiter, handler, attachment);
+            return true;
+        }
+        scanIndex = position;
+        checkLength(available);
+        if (readIndex == 0 && position == buffer.capacity()) {
+            detach(0);
+            return true;
+        }
+        return false;
+    }
+
+    private <A> boolean continueComposite(FrameHandler<A> handler, A attachment) throws ProtocolException {
+        int position = buffer.position();
+        if (codec.headerLength() > 0) {
+            int missing = compositeTarget - compositeLength;
+            if (position - readIndex >= missing) {
+                finishComposite(readIndex + missing, readIndex + missing, handler, attachment);
+                return true;
+            }
+        } else {
+            int delimiter = codec.indexOfDelimiter(buffer, scanIndex, position);
+            if (delimiter >= 0) {
+                checkLength(compositeLength + delimiter - readIndex);
+                finishComposite(delimiter, delimiter + codec.delimiterLength(), handler, attachment);
+                return true;
+            }
+            scanIndex = position;
+            checkLength(compositeLength + position - readIndex);
+        }
+
+        if (position == buffer.capacity()) {
+            detach(readIndex);
+            return true;
+        }
+        return false;
+    }
+
+    /** Sets the cumulation buffer aside as the next chunk of a large frame, its payload starting at {@code start}. */
+    private void detach(int start) {
+        ByteBuffer chunk = buffer;
+        chunk.limit(chunk.position()).position(start);
+        ensureChunkCapacity();
+        chunks[chunkCount++] = chunk;
+        compositeLength += chunk.remaining();
+        // Doubling keeps a long frame to one chunk per pooled 64 KiB rather than one per bufferSize.
+        newBuffer(Math.max(bufferSize, Math.min(chunk.capacity() * 2, 1 << BufferPool.MAX_SHIFT)));
+    }
+
+    /** Continues with {@code larger} as the cumulation buffer, moving the undecoded bytes over. */
+    private void moveTo(ByteBuffer larger) {
+        larger.clear();
+        buffer.limit(buffer.position()).position(readIndex);
+        larger.put(buffer);
+        pool.release(buffer);
+        buffer = larger;
+        view = buffer.duplicate();
+        scanIndex = Math.max(0, scanIndex - readIndex);
+        readIndex = 0;
+    }
+
+    /** Makes room for one more chunk, doubling like the buffers do. */
+    private void ensureChunkCapacity() {
+        if (chunkCount == chunks.length) {
+            ByteBuffer[] grown = new ByteBuffer[chunks.length * 2];
+            System.arraycopy(chunks, 0, grown, 0, chunkCount);
+            chunks = grown;
+        }
+    }
+
+    private <A> void finishComposite(int end, int next, FrameHandler<A> handler, A attachment) {
+        ensureChunkCapacity();
+        view.clear().position(readIndex).limit(end);
+        chunks[chunkCount] = view;
+        int length = compositeLength + (end - readIndex);
+        readIndex = scanIndex = next;
+        try {
+            handler.onFrame(chunks, chunkCount + 1, length, attachment);
+        } finally {
+            chunks[chunkCount] = null;
+            for (int i = 0; i < chunkCount; i++) {
+                pool.release(chunks[i]);
+                chunks[i] = null;
+            }
+            chunkCount = 0;
+            compositeLength = 0;
+            compositeTarget = 0;
+        }
+    }
+
+    private <A> void deliver(int start, int end, FrameHandler<A> handler, A attachment) {
+        view.clear().position(start).limit(end);
+        single[0] = view;
+        handler.onFrame(single, 1, end - start, attachment);
+    }
+
+    /** Moves the bytes of a partial frame to the front, so the next read has room for the rest of it. */
+    private void compact() {
+        if (chunkCount > 0) {
+            return;
+        }
+        int position = buffer.position();
+        if (buffer.capacity() > bufferSize && position - readIndex <= bufferSize) {
+            // Done with a large frame: back to the usual size.
+            moveTo(pool.acquire(bufferSize));
+            return;
+        }
+        if (readIndex == 0) {
+            return;
+        }
+        if (readIndex == position) {
+            buffer.clear();
+        } else {
+            buffer.limit(position).position(readIndex);
+            buffer.compact();
+        }
+        scanIndex = Math.max(0, scanIndex - readIndex);
+        readIndex = 0;
+    }
+
+    private int checkLength(int length) throws ProtocolException {
+        if (length < 0 || length > maxFrameLength) {
+            throw new ProtocolException("Frame length " + length + " outside [0, " + maxFrameLength + "]");
+        }
+        return length;
+    }
+
+    private void newBuffer(int capacity) {
+        buffer = pool.acquire(capacity);
+        buffer.clear();
+        view = buffer.duplicate();
+        readIndex = 0;
+        scanIndex = 0;
+    }
+}
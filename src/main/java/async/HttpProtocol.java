@@ -0,0 +1,409 @@
+package async;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * HTTP/1.1, selected with {@code -Dnio2lab.protocol=http}, so curl, wrk or ab can load the CompletionHandler engine and
+ * health checks can share its port:
+ * <ul>
+ *     <li>{@code GET /health} answers 200 {@code OK};</li>
+ *     <li>{@code GET /} answers a fixed greeting;</li>
+ *     <li>{@code POST /echo} answers with the request body, streamed back as it arrives;</li>
+ *     <li>{@code GET /files/<path>} answers with a file from the {@link MappedFileCache}, streamed as views of its
+ *     mapping, a chunk at a time as the write queue drains;</li>
+ *     <li>other targets get 404; other methods, {@code Transfer-Encoding} bodies and malformed requests, including
+ *     {@code Content-Length} headers that disagree (RFC 9112, section 6.3), get an error and the connection is
+ *     closed.</li>
+ * </ul>
+ * The parser is incremental and works on the read buffer itself: it picks up where the previous read stopped,
+ * compares the request line and the few header names it cares about against byte constants, and never builds a
+ * {@code String}. A connection stays open unless the request says otherwise ({@code Connection: close}, or HTTP/1.0
+ * without {@code keep-alive}). Pipelined requests are all answered from one read, their responses queued in order
+ * for the next flush to send with one gathering write. Static responses are encoded once and only copied into a
+ * pooled buffer per request.
+ * <p>
+ * The request line and headers must fit into {@code nio2lab.http.maxHeaderBytes} (default 8192).
+ */
+final class HttpProtocol implements Protocol {
+    static final int MAX_HEADER_BYTES = Integer.getInteger("nio2lab.http.maxHeaderBytes", 8192);
+
+    private enum State {
+        REQUEST_LINE,
+        HEADERS,
+        // Queueing a file response as the earlier chunks are written; the request's body, if any, comes after.
+        STREAMING,
+        BODY
+    }
+
+    private enum Route {
+        ROOT,
+        HEALTH,
+        ECHO,
+        FILES,
+        OTHER
+    }
+
+    // How the response must spell out keep-alive: not at all for HTTP/1.1, explicitly for HTTP/1.0, or closing.
+    private static final int DEFAULT = 0;
+    private static final int KEEP_ALIVE = 1;
+    private static final int CLOSE = 2;
+
+    private static final byte[][] HEALTH = response("200 OK", "OK\n");
+    private static final byte[][] ROOT = response("200 OK", "Hello, NIO2 async with CompletionHandler!\n");
+    private static final byte[][] NOT_FOUND = response("404 Not Found", "Not Found\n");
+    private static final byte[][] BAD_REQUEST = response("400 Bad Request", "Bad Request\n");
+    private static final byte[][] HEADERS_TOO_LARGE = response("431 Request Header Fields Too Large", "Request Header Fields Too Large\n");
+    private static final byte[][] NOT_IMPLEMENTED = response("501 Not Implemented", "Not Implemented\n");
+    // The echo response up to its Content-Length value, which is only known per request.
+    private static final byte[][] ECHO_HEAD = head("200 OK", "application/octet-stream");
+    // The same for files, per content type.
+    private static final Map<String, byte[][]> FILE_HEADS = fileHeads();
+    private static final byte[] END_OF_HEAD = Ascii.bytes("\r\n\r\n");
+
+    private static final byte[] GET = Ascii.bytes("GET");
+    private static final byte[] POST = Ascii.bytes("POST");
+    private static final byte[] HTTP_1_1 = Ascii.bytes("HTTP/1.1");
+    private static final byte[] HTTP_1_0 = Ascii.bytes("HTTP/1.0");
+    private static final byte[] PATH_ROOT = Ascii.bytes("/");
+    private static final byte[] PATH_HEALTH = Ascii.bytes("/health");
+    private static final byte[] PATH_ECHO = Ascii.bytes("/echo");
+    private static final byte[] PATH_FILES = Ascii.bytes("/files/");
+    private static final byte[] CONTENT_LENGTH = Ascii.bytes("content-length");
+    private static final byte[] CONNECTION = Ascii.bytes("connection");
+    private static final byte[] TRANSFER_ENCODING = Ascii.bytes("transfer-encoding");
+    private static final byte[] CLOSE_TOKEN = Ascii.bytes("close");
+    private static final byte[] KEEP_ALIVE_TOKEN = Ascii.bytes("keep-alive");
+
+    // Pooled, in write mode: unparsed bytes are [readIndex, position).
+    private ByteBuffer buffer = BufferPool.SHARED.acquire(MAX_HEADER_BYTES).clear();
+    private int readIndex;
+    // Where the search for the end of the current line goes on.
+    private int scanIndex;
+
+    // The request being parsed.
+    private State state = State.REQUEST_LINE;
+    private int headerBytes;
+    private boolean get;
+    private boolean post;
+    private Route route;
+    private boolean http10;
+    private boolean keepAlive;
+    private boolean chunked;
+    private boolean hasContentLength;
+    private long contentLength;
+    private long bodyRemaining;
+    private boolean echoBody;
+    // GET /files/: the file's path under the root, then the file being streamed and how far.
+    private String filePath;
+    private MappedFileCache.MappedFile file;
+    private long fileOffset;
+
+    @Override
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    @Override
+    public boolean hasMoreOutput() {
+        return state == State.STREAMING;
+    }
+
+    @Override
+    public boolean hasPartialRequest() {
+        return state != State.REQUEST_LINE || buffer.position() > readIndex;
+    }
+
+    @Override
+    public boolean process(ConnectionContext context) {
+        int position = buffer.position();
+        boolean open = true;
+        while (open) {
+            if (state == State.STREAMING) {
+                if (!stream(context)) {
+                    break;
+                }
+                open = state == State.BODY;
+                continue;
+            }
+            if (state == State.BODY) {
+                int length = (int) Math.min(bodyRemaining, position - readIndex);
+                if (length > 0 && echoBody) {
+                    ByteBuffer chunk = BufferPool.SHARED.acquire(length);
+                    chunk.put(0, buffer, readIndex, length);
+                    context.send(chunk);
+                }
+                readIndex = scanIndex = readIndex + length;
+                bodyRemaining -= length;
+                if (bodyRemaining > 0) {
+                    break;
+                }
+                open = keepAlive;
+                state = State.REQUEST_LINE;
+                continue;
+            }
+
+            int lineFeed = Ascii.indexOf(buffer, '\n', scanIndex, position);
+            if (lineFeed < 0) {
+                scanIndex = position;
+                if (headerBytes + position - readIndex >= MAX_HEADER_BYTES) {
+                    open = fail(context, HEADERS_TOO_LARGE);
+                }
+                break;
+            }
+            int lineEnd = lineFeed > readIndex && buffer.get(lineFeed - 1) == '\r' ? lineFeed - 1 : lineFeed;
+            headerBytes += lineFeed + 1 - readIndex;
+            if (headerBytes > MAX_HEADER_BYTES) {
+                open = fail(context, HEADERS_TOO_LARGE);
+            } else if (state == State.REQUEST_LINE) {
+                // Empty lines before a request line are allowed, and skipped.
+                if (lineEnd > readIndex) {
+                    open = requestLine(readIndex, lineEnd) || fail(context, BAD_REQUEST);
+                } else {
+                    headerBytes = 0;
+                }
+            } else if (lineEnd > readIndex) {
+                open = header(readIndex, lineEnd) || fail(context, BAD_REQUEST);
+            } else {
+                open = respond(context);
+            }
+            readIndex = scanIndex = lineFeed + 1;
+        }
+        if (open) {
+            compact();
+        }
+        return open;
+    }
+
+    @Override
+    public void release() {
+        if (buffer != null) {
+            BufferPool.SHARED.release(buffer);
+            buffer = null;
+        }
+    }
+
+    private boolean requestLine(int start, int end) {
+        int methodEnd = Ascii.indexOf(buffer, ' ', start, end);
+        int targetEnd = methodEnd < 0 ? -1 : Ascii.indexOf(buffer, ' ', methodEnd + 1, end);
+        if (targetEnd < 0) {
+            return false;
+        }
+        get = Ascii.equals(buffer, start, methodEnd, GET);
+        post = Ascii.equals(buffer, start, methodEnd, POST);
+
+        int pathEnd = Ascii.indexOf(buffer, '?', methodEnd + 1, targetEnd);
+        pathEnd = pathEnd < 0 ? targetEnd : pathEnd;
+        if (Ascii.equals(buffer, methodEnd + 1, pathEnd, PATH_ROOT)) {
+            route = Route.ROOT;
+        } else if (Ascii.equals(buffer, methodEnd + 1, pathEnd, PATH_HEALTH)) {
+            route = Route.HEALTH;
+        } else if (Ascii.equals(buffer, methodEnd + 1, pathEnd, PATH_ECHO)) {
+            route = Route.ECHO;
+        } else if (Ascii.startsWith(buffer, methodEnd + 1, pathEnd, PATH_FILES)) {
+            route = Route.FILES;
+            // The one String per request: opening a file takes a Path.
+            byte[] path = new byte[pathEnd - methodEnd - 1 - PATH_FILES.length];
+            buffer.get(methodEnd + 1 + PATH_FILES.length, path);
+            filePath = new String(path, StandardCharsets.UTF_8);
+        } else {
+            route = Route.OTHER;
+        }
+
+        if (Ascii.equals(buffer, targetEnd + 1, end, HTTP_1_1)) {
+            http10 = false;
+        } else if (Ascii.equals(buffer, targetEnd + 1, end, HTTP_1_0)) {
+            http10 = true;
+        } else {
+            return false;
+        }
+        keepAlive = !http10;
+        chunked = false;
+        hasContentLength = false;
+        contentLength = 0;
+        state = State.HEADERS;
+        return true;
+    }
+
+    private boolean header(int start, int end) {
+        int colon = Ascii.indexOf(buffer, ':', start, end);
+        if (colon <= start) {
+            return false;
+        }
+        int valueStart = colon + 1;
+        while (valueStart < end && isWhitespace(buffer.get(valueStart))) {
+            valueStart++;
+        }
+        int valueEnd = end;
+        while (valueEnd > valueStart && isWhitespace(buffer.get(valueEnd - 1))) {
+            valueEnd--;
+        }
+
+        if (Ascii.equalsIgnoreCase(buffer, start, colon, CONTENT_LENGTH)) {
+            if (valueStart == valueEnd || valueEnd - valueStart > 18) {
+                return false;
+            }
+            long length = 0;
+            for (int i = valueStart; i < valueEnd; i++) {
+                byte digit = buffer.get(i);
+                if (digit < '0' || digit > '9') {
+                    return false;
+                }
+                length = length * 10 + (digit - '0');
+            }
+            // Two lengths that disagree leave the body's end ambiguous, which is how requests get smuggled.
+            if (hasContentLength && length != contentLength) {
+                return false;
+            }
+            hasContentLength = true;
+            contentLength = length;
+        } else if (Ascii.equalsIgnoreCase(buffer, start, colon, CONNECTION)) {
+            if (Ascii.equalsIgnoreCase(buffer, valueStart, valueEnd, CLOSE_TOKEN)) {
+                keepAlive = false;
+            } else if (Ascii.equalsIgnoreCase(buffer, valueStart, valueEnd, KEEP_ALIVE_TOKEN)) {
+                keepAlive = true;
+            }
+        } else if (Ascii.equalsIgnoreCase(buffer, start, colon, TRANSFER_ENCODING)) {
+            chunked = true;
+        }
+        return true;
+    }
+
+    /** The headers are complete: queues the response, or its head for an echo, and moves on to the body. */
+    private boolean respond(ConnectionContext context) {
+        if (chunked || !(get || post)) {
+            // Without a length the body cannot be skipped, so the connection cannot be reused.
+            return fail(context, NOT_IMPLEMENTED);
+        }
+        echoBody = post && route == Route.ECHO;
+        if (echoBody) {
+            byte[] head = ECHO_HEAD[connectionVariant()];
+            ByteBuffer reply = BufferPool.SHARED.acquire(head.length + 19 + END_OF_HEAD.length);
+            reply.put(head);
+            putDecimal(contentLength, reply);
+            reply.put(END_OF_HEAD);
+            context.send(reply.flip());
+        } else if (get && route == Route.FILES && (file = MappedFileCache.SHARED.find(filePath)) != null) {
+            byte[] head = FILE_HEADS.get(file.contentType())[connectionVariant()];
+            ByteBuffer reply = BufferPool.SHARED.acquire(head.length + 19 + END_OF_HEAD.length);
+            reply.put(head);
+            putDecimal(file.size(), reply);
+            reply.put(END_OF_HEAD);
+            context.send(reply.flip());
+            fileOffset = 0;
+            bodyRemaining = contentLength;
+            headerBytes = 0;
+            state = State.STREAMING;
+            return true;
+        } else if (get && route == Route.HEALTH) {
+            send(context, HEALTH);
+        } else if (get && route == Route.ROOT) {
+            send(context, ROOT);
+        } else {
+            send(context, NOT_FOUND);
+        }
+        bodyRemaining = contentLength;
+        headerBytes = 0;
+        state = State.BODY;
+        return true;
+    }
+
+    /**
+     * Queues views of the file being served until the connection has a watermark's worth queued. Returns true once
+     * the whole file is queued, false if it has to wait for writes.
+     */
+    private boolean stream(ConnectionContext context) {
+        try {
+            while (fileOffset < file.size()) {
+                if (context.pendingBytes() > ServerLimits.HIGH_WATERMARK) {
+                    return false;
+                }
+                ByteBuffer chunk = MappedFileCache.SHARED.chunk(file, fileOffset);
+                chunk.limit((int) Math.min(chunk.limit(), file.size() - fileOffset));
+                fileOffset += chunk.remaining();
+                context.send(chunk, MappedFileCache.SHARED, 0);
+            }
+        } catch (IOException e) {
+            // The head promised more than can be sent now: closing is the only way to tell the client.
+            System.err.println("Mapping " + file.path() + " failed: " + e);
+            keepAlive = false;
+            file = null;
+            state = State.REQUEST_LINE;
+            return true;
+        }
+        file = null;
+        state = State.BODY;
+        return true;
+    }
+
+    private boolean fail(ConnectionContext context, byte[][] response) {
+        keepAlive = false;
+        send(context, response);
+        return false;
+    }
+
+    private void send(ConnectionContext context, byte[][] response) {
+        byte[] bytes = response[connectionVariant()];
+        context.send(BufferPool.SHARED.acquire(bytes.length).put(bytes).flip());
+    }
+
+    private int connectionVariant() {
+        return !keepAlive ? CLOSE : http10 ? KEEP_ALIVE : DEFAULT;
+    }
+
+    /** Moves the unparsed bytes to the front, so the next read has room for the rest of the line. */
+    private void compact() {
+        if (readIndex == 0) {
+            return;
+        }
+        Ascii.compact(buffer, readIndex);
+        scanIndex -= readIndex;
+        readIndex = 0;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private static void putDecimal(long value, ByteBuffer out) {
+        long divisor = 1;
+        while (divisor <= value / 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            out.put((byte) ('0' + value / divisor % 10));
+        }
+    }
+
+    /** The three variants of a complete response, indexed by {@link #connectionVariant()}. */
+    private static byte[][] response(String status, String body) {
+        byte[][] head = head(status, "text/plain");
+        byte[][] variants = new byte[3][];
+        for (int i = 0; i < variants.length; i++) {
+            variants[i] = Ascii.bytes(new String(head[i], StandardCharsets.US_ASCII) + body.length() + "\r\n\r\n" + body);
+        }
+        return variants;
+    }
+
+    /** The three variants of a response head, up to the value of its Content-Length header. */
+    private static byte[][] head(String status, String contentType) {
+        String head = "HTTP/1.1 " + status + "\r\nContent-Type: " + contentType + "\r\n";
+        return new byte[][]{
+                Ascii.bytes(head + "Content-Length: "),
+                Ascii.bytes(head + "Connection: keep-alive\r\nContent-Length: "),
+                Ascii.bytes(head + "Connection: close\r\nContent-Length: ")
+        };
+    }
+
+    private static Map<String, byte[][]> fileHeads() {
+        Map<String, byte[][]> heads = new HashMap<>();
+        for (String contentType : MappedFileCache.CONTENT_TYPES.values()) {
+            heads.put(contentType, head("200 OK", contentType));
+        }
+        heads.put(MappedFileCache.DEFAULT_CONTENT_TYPE, head("200 OK", MappedFileCache.DEFAULT_CONTENT_TYPE));
+        return heads;
+    }
+}
@@ -0,0 +1,541 @@
+package async;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * An append-only journal of every frame the echo servers receive, written through memory-mapped segment files and
+ * made durable by group commit. Off unless {@code nio2lab.journal.dir} names its directory.
+ * <p>
+ * {@link #append} only queues the frame: one writer thread copies whatever all connections queued meanwhile into the
+ * current segment and calls {@code force()} once for the whole batch, when {@code nio2lab.journal.flushBytes}
+ * (default 1 MiB) are unforced or the oldest unforced frame waited {@code nio2lab.journal.flushMillis} (default 2, 0
+ * forces as soon as the queue is drained). A frame counts as received only once the force covering it returned: the
+ * CompletionHandler server gets its reply back through an {@link Ack} then, the Future server blocks in
+ * {@link #awaitDurable} before writing its replies.
+ * <p>
+ * A segment is a file of {@code nio2lab.journal.segmentBytes} (default 64 MiB) named after the sequence number of its
+ * first entry, so a replay finds its first segment by a binary search over the names, see {@link #replay}. A record is
+ * its length, the payload's CRC32C and the payload; the zeroes after the last record end a segment. On startup only the
+ * last segment is scanned, up to the first record that is incomplete or fails its checksum: the writer continues there.
+ * <p>
+ * The queue entries are recycled: the writer hands back the ones it acknowledged, and an append takes one of those, so
+ * once as many entries exist as are ever in flight appending allocates nothing.
+ * <p>
+ * {@link #close} makes everything appended so far durable and stops the writer; later appends are rejected.
+ */
+final class Journal {
+    static final int RECORD_HEADER_LENGTH = 2 * Integer.BYTES;
+
+    private static final Pattern SEGMENT_NAME = Pattern.compile("\\d{20}\\.journal");
+
+    static final Journal SHARED = open(System.getProperty("nio2lab.journal.dir"));
+
+    /** Told, on the writer's thread, that the entry appended with {@code buffer} is durable, or never will be. */
+    interface Ack {
+        void journaled(ByteBuffer buffer, boolean durable);
+    }
+
+    /** Receives the entries of a {@link #replay}; {@code payload} is only valid during the call. */
+    interface Visitor {
+        void entry(long sequence, ByteBuffer payload);
+    }
+
+    private static final class Entry {
+        ByteBuffer buffer;
+        int index;
+        int length;
+        Ack ack;
+        long appendedNanos;
+        long sequence;
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final long flushBytes;
+    private final long flushNanos;
+
+    // Guarded by itself: a sequence number is handed out and its entry queued in one step, so the queue is in order.
+    private final Object appendLock = new Object();
+    private ArrayDeque<Entry> appended = new ArrayDeque<>();
+    // Entries to reuse; swapped with the writer's recycled ones whenever it runs out.
+    private ArrayDeque<Entry> spare = new ArrayDeque<>();
+    private long nextSequence;
+    private IOException failure;
+    private boolean closing;
+
+    private Thread writer;
+
+    // Owned by the writer's thread.
+    private ArrayDeque<Entry> batch = new ArrayDeque<>();
+    private final ArrayDeque<Entry> unforced = new ArrayDeque<>();
+    private ArrayDeque<Entry> recycled = new ArrayDeque<>();
+    private final CRC32C crc = new CRC32C();
+    private MappedByteBuffer segment;
+    // The same mapping, for checksumming what was just written without moving the segment's position.
+    private ByteBuffer segmentView;
+    private int unforcedFrom;
+    private long unforcedBytes;
+
+    // Every entry below this sequence number is on disk.
+    private final ReentrantLock durableLock = new ReentrantLock();
+    private final Condition forced = durableLock.newCondition();
+    private volatile long durableSequence;
+    private volatile boolean failed;
+
+    // Written by the writer's thread only.
+    private volatile int segments;
+    private volatile long forces;
+    private volatile long forcedEntries;
+
+    Journal(Path directory, int segmentSize, long flushBytes, long flushMillis) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.flushBytes = flushBytes;
+        this.flushNanos = TimeUnit.MILLISECONDS.toNanos(flushMillis);
+        Files.createDirectories(directory);
+        recover();
+    }
+
+    private static Journal open(String directory) {
+        if (directory == null) {
+            return null;
+        }
+        try {
+            Journal journal = new Journal(Path.of(directory),
+                    Integer.getInteger("nio2lab.journal.segmentBytes", 64 << 20),
+                    Long.getLong("nio2lab.journal.flushBytes", 1 << 20),
+                    Long.getLong("nio2lab.journal.flushMillis", 2));
+            journal.start();
+            return journal;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Opening the journal in " + directory + " failed", e);
+        }
+    }
+
+    /** The longest entry {@link #append} takes: a record has to fit in one segment. */
+    int maxEntryLength() {
+        return segmentSize - RECORD_HEADER_LENGTH;
+    }
+
+    /**
+     * Queues {@code length} bytes of {@code buffer} from {@code index} as the next entry and returns its sequence
+     * number. The writer copies them later, so the caller must leave them alone until the entry is durable: until
+     * {@code ack} got {@code buffer} back, or {@link #awaitDurable} returned. Callers check {@link #maxEntryLength()}
+     * first: a longer entry could never be made durable.
+     */
+    long append(ByteBuffer buffer, int index, int length, Ack ack) {
+        if (length > maxEntryLength()) {
+            throw new IllegalArgumentException("An entry of " + length + " bytes does not fit in a journal segment");
+        }
+        long appendedNanos = System.nanoTime();
+        long sequence;
+        boolean rejected;
+        synchronized (appendLock) {
+            sequence = nextSequence++;
+            rejected = failure != null;
+            if (!rejected) {
+                Entry entry = spare.poll();
+                if (entry == null) {
+                    entry = new Entry();
+                }
+                entry.buffer = buffer;
+                entry.index = index;
+                entry.length = length;
+                entry.ack = ack;
+                entry.appendedNanos = appendedNanos;
+                entry.sequence = sequence;
+                appended.add(entry);
+                if (appended.size() == 1) {
+                    appendLock.notify();
+                }
+            }
+        }
+        if (rejected && ack != null) {
+            ack.journaled(buffer, false);
+        }
+        return sequence;
+    }
+
+    /**
+     * Blocks until the entry {@code sequence} is durable. Not interruptible: the writer may still be copying the
+     * entry's bytes, which the caller has to keep until then. Throws if the journal failed.
+     */
+    void awaitDurable(long sequence) throws IOException {
+        if (sequence < durableSequence) {
+            return;
+        }
+        durableLock.lock();
+        try {
+            while (sequence >= durableSequence) {
+                if (failed) {
+                    throw new IOException("The journal failed", failure());
+                }
+                forced.awaitUninterruptibly();
+            }
+        } finally {
+            durableLock.unlock();
+        }
+    }
+
+    /**
+     * Hands every entry in {@code directory} from sequence number {@code from} on to {@code visitor}, oldest first,
+     * and returns how many there were. Reads the files as they are, so use it on a journal no writer is appending to.
+     */
+    static long replay(Path directory, long from, Visitor visitor) throws IOException {
+        long[] firstSequences = segments(directory);
+        int first = Arrays.binarySearch(firstSequences, from);
+        if (first < 0) {
+            first = Math.max(0, -first - 2);
+        }
+        CRC32C crc = new CRC32C();
+        long replayed = 0;
+        for (int i = first; i < firstSequences.length; i++) {
+            MappedByteBuffer segment = map(directory, firstSequences[i], FileChannel.MapMode.READ_ONLY, 0);
+            long sequence = firstSequences[i];
+            int position = 0;
+            int length;
+            while ((length = recordLength(segment, position)) >= 0) {
+                // Earlier entries are skipped by their length alone.
+                if (sequence >= from) {
+                    ByteBuffer payload = segment.slice(position + RECORD_HEADER_LENGTH, length);
+                    crc.reset();
+                    crc.update(payload.duplicate());
+                    if ((int) crc.getValue() != segment.getInt(position + Integer.BYTES)) {
+                        break;
+                    }
+                    visitor.entry(sequence, payload);
+                    replayed++;
+                }
+                position += RECORD_HEADER_LENGTH + length;
+                sequence++;
+            }
+        }
+        return replayed;
+    }
+
+    /** Prints the entries of the journal in {@code args[0]}, from the sequence number in {@code args[1]} if given. */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: Journal <directory> [from sequence]");
+            return;
+        }
+        long from = args.length > 1 ? Long.parseLong(args[1]) : 0;
+        long start = System.nanoTime();
+        long replayed = replay(Path.of(args[0]), from, (sequence, payload) -> {
+            byte[] preview = new byte[Math.min(payload.remaining(), 64)];
+            payload.get(preview);
+            System.out.println(sequence + "\t" + payload.limit() + "\t"
+                    + new String(preview, StandardCharsets.ISO_8859_1).replaceAll("\\p{Cntrl}", "."));
+        });
+        System.out.println("Replayed " + replayed + " entries in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+    }
+
+    @Override
+    public String toString() {
+        return directory + ": " + segments + " segments, durable up to " + durableSequence + ", forces=" + forces
+                + ", forcedEntries=" + forcedEntries;
+    }
+
+    void start() {
+        writer = new Thread(this::run, "Journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Rejects further appends, waits until the writer made everything appended before durable and stopped, then
+     * drops the segment's mapping. Waiting for a rejected entry throws, as it does after a failure.
+     */
+    void close() {
+        ArrayDeque<Entry> rejected = new ArrayDeque<>();
+        synchronized (appendLock) {
+            if (closing) {
+                return;
+            }
+            closing = true;
+            if (failure == null) {
+                failure = new IOException("The journal is closed");
+            }
+            if (writer == null) {
+                rejected.addAll(appended);
+                appended.clear();
+            }
+            appendLock.notify();
+        }
+        if (writer == null) {
+            stopped();
+            for (Entry entry : rejected) {
+                acknowledge(entry, false);
+            }
+        } else {
+            boolean interrupted = false;
+            while (writer.isAlive()) {
+                try {
+                    writer.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        // The mapping goes away once nothing refers to it any more.
+        segment = null;
+        segmentView = null;
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                boolean last;
+                synchronized (appendLock) {
+                    while (appended.isEmpty() && !closing) {
+                        if (unforced.isEmpty()) {
+                            appendLock.wait();
+                            continue;
+                        }
+                        long wait = unforced.peekFirst().appendedNanos + flushNanos - System.nanoTime();
+                        if (wait <= 0) {
+                            break;
+                        }
+                        TimeUnit.NANOSECONDS.timedWait(appendLock, wait);
+                    }
+                    // Once closing nothing is appended any more, so this batch is the last one.
+                    last = closing;
+                    // Take everything queued at once; appenders go on filling the other, drained, queue.
+                    ArrayDeque<Entry> taken = appended;
+                    appended = batch;
+                    batch = taken;
+                    if (spare.isEmpty()) {
+                        ArrayDeque<Entry> reusable = recycled;
+                        recycled = spare;
+                        spare = reusable;
+                    }
+                }
+                Entry entry;
+                // Taken off the batch only once written: an entry whose write fails is rejected along with the rest.
+                while ((entry = batch.peek()) != null) {
+                    write(entry);
+                    batch.poll();
+                    if (unforcedBytes >= flushBytes) {
+                        commit();
+                    }
+                }
+                if (last) {
+                    commit();
+                    stopped();
+                    return;
+                }
+                if (!unforced.isEmpty() && System.nanoTime() - unforced.peekFirst().appendedNanos >= flushNanos) {
+                    commit();
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+        } catch (RuntimeException e) {
+            // E.g. the UncheckedIOException of a failed force.
+            fail(new IOException(e));
+        } catch (InterruptedException e) {
+            fail(new IOException("The journal writer was interrupted"));
+        }
+    }
+
+    private void write(Entry entry) throws IOException {
+        int recordLength = RECORD_HEADER_LENGTH + entry.length;
+        if (segment == null || segment.remaining() < recordLength) {
+            roll(entry.sequence);
+        }
+        int position = segment.position();
+        int payloadPosition = position + RECORD_HEADER_LENGTH;
+        segment.put(payloadPosition, entry.buffer, entry.index, entry.length);
+        segmentView.limit(payloadPosition + entry.length).position(payloadPosition);
+        crc.reset();
+        crc.update(segmentView);
+        segment.putInt(position, recordLength);
+        segment.putInt(position + Integer.BYTES, (int) crc.getValue());
+        segment.position(position + recordLength);
+        unforced.add(entry);
+        unforcedBytes += recordLength;
+    }
+
+    /** Forces the batch written so far, then acknowledges its entries. */
+    private void commit() {
+        if (unforced.isEmpty()) {
+            return;
+        }
+        segment.force(unforcedFrom, segment.position() - unforcedFrom);
+        unforcedFrom = segment.position();
+        unforcedBytes = 0;
+        forces++;
+        forcedEntries += unforced.size();
+        durableLock.lock();
+        try {
+            durableSequence = unforced.peekLast().sequence + 1;
+            forced.signalAll();
+        } finally {
+            durableLock.unlock();
+        }
+        Entry entry;
+        while ((entry = unforced.poll()) != null) {
+            acknowledge(entry, true);
+            entry.buffer = null;
+            entry.ack = null;
+            recycled.add(entry);
+        }
+    }
+
+    /** Starts a new segment with the entry {@code firstSequence}, once the entries in the current one are durable. */
+    private void roll(long firstSequence) throws IOException {
+        commit();
+        segment = map(directory, firstSequence, FileChannel.MapMode.READ_WRITE, segmentSize);
+        segmentView = segment.duplicate();
+        unforcedFrom = 0;
+        segments++;
+        // The new file's name has to be durable too. Not every platform can open a directory to force it.
+        try (FileChannel directoryChannel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            directoryChannel.force(true);
+        } catch (IOException e) {
+            // Then the name becomes durable whenever the file system gets to it.
+        }
+    }
+
+    private void fail(IOException e) {
+        System.err.println("The journal failed, nothing is acknowledged any more: " + e);
+        ArrayDeque<Entry> rejected = new ArrayDeque<>(unforced);
+        unforced.clear();
+        rejected.addAll(batch);
+        batch.clear();
+        synchronized (appendLock) {
+            failure = e;
+            rejected.addAll(appended);
+            appended.clear();
+        }
+        stopped();
+        for (Entry entry : rejected) {
+            acknowledge(entry, false);
+        }
+    }
+
+    /** Wakes everyone in {@link #awaitDurable}: what is not durable by now never will be. */
+    private void stopped() {
+        durableLock.lock();
+        try {
+            failed = true;
+            forced.signalAll();
+        } finally {
+            durableLock.unlock();
+        }
+    }
+
+    private IOException failure() {
+        synchronized (appendLock) {
+            return failure;
+        }
+    }
+
+    private static void acknowledge(Entry entry, boolean durable) {
+        if (entry.ack == null) {
+            return;
+        }
+        try {
+            entry.ack.journaled(entry.buffer, durable);
+        } catch (RuntimeException e) {
+            System.err.println("Acknowledging a journal entry failed: " + e);
+        }
+    }
+
+    /** Finds where the last segment ends: the writer appends after its last intact record. */
+    private void recover() throws IOException {
+        long[] firstSequences = segments(directory);
+        segments = firstSequences.length;
+        if (firstSequences.length == 0) {
+            return;
+        }
+        long firstSequence = firstSequences[firstSequences.length - 1];
+        segment = map(directory, firstSequence, FileChannel.MapMode.READ_WRITE, 0);
+        segmentView = segment.duplicate();
+        int position = 0;
+        int length;
+        long count = 0;
+        while ((length = recordLength(segment, position)) >= 0) {
+            segmentView.limit(position + RECORD_HEADER_LENGTH + length).position(position + RECORD_HEADER_LENGTH);
+            crc.reset();
+            crc.update(segmentView);
+            if ((int) crc.getValue() != segment.getInt(position + Integer.BYTES)) {
+                break;
+            }
+            position += RECORD_HEADER_LENGTH + length;
+            count++;
+        }
+
+        // Zero what a crash left behind the last intact record, so no remnant of it reads as a record later on.
+        int dirtyEnd = segment.limit();
+        while (dirtyEnd - Long.BYTES >= position && segment.getLong(dirtyEnd - Long.BYTES) == 0) {
+            dirtyEnd -= Long.BYTES;
+        }
+        byte[] zeroes = new byte[64 << 10];
+        for (int i = position; i < dirtyEnd; i += zeroes.length) {
+            segment.put(i, zeroes, 0, Math.min(zeroes.length, dirtyEnd - i));
+        }
+        if (dirtyEnd > position) {
+            segment.force(position, dirtyEnd - position);
+        }
+
+        segment.position(position);
+        unforcedFrom = position;
+        nextSequence = durableSequence = firstSequence + count;
+    }
+
+    /** The payload length of the record at {@code position}, or -1 if the segment ends there. */
+    private static int recordLength(ByteBuffer segment, int position) {
+        if (segment.limit() - position < RECORD_HEADER_LENGTH) {
+            return -1;
+        }
+        // Counting the header, so that no record, not even an empty one, has a length of 0.
+        int recordLength = segment.getInt(position);
+        if (recordLength < RECORD_HEADER_LENGTH || recordLength > segment.limit() - position) {
+            return -1;
+        }
+        return recordLength - RECORD_HEADER_LENGTH;
+    }
+
+    private static long[] segments(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(file -> file.getFileName().toString())
+                    .filter(SEGMENT_NAME.asMatchPredicate())
+                    .mapToLong(name -> Long.parseLong(name.substring(0, 20)))
+                    .sorted()
+                    .toArray();
+        }
+    }
+
+    /** Maps the segment starting at {@code firstSequence}; {@code size} 0 maps an existing file as it is. */
+    private static MappedByteBuffer map(Path directory, long firstSequence, FileChannel.MapMode mode, int size)
+            throws IOException {
+        Path path = directory.resolve(String.format("%020d.journal", firstSequence));
+        StandardOpenOption[] options = mode == FileChannel.MapMode.READ_ONLY
+                ? new StandardOpenOption[]{StandardOpenOption.READ}
+                : new StandardOpenOption[]{StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE};
+        try (FileChannel channel = FileChannel.open(path, options)) {
+            return channel.map(mode, 0, size == 0 ? channel.size() : size);
+        }
+    }
+}
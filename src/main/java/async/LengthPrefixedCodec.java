@@ -0,0 +1,42 @@
+package async;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Frames as a 4-byte big-endian payload length followed by the payload.
+ */
+final class LengthPrefixedCodec implements FrameCodec {
+    static final LengthPrefixedCodec INSTANCE = new LengthPrefixedCodec();
+
+    private LengthPrefixedCodec() {
+    }
+
+    @Override
+    public int headerLength() {
+        return Integer.BYTES;
+    }
+
+    @Override
+    public int delimiterLength() {
+        return 0;
+    }
+
+    @Override
+    public int payloadLength(ByteBuffer in, int index) {
+        return in.getInt(index);
+    }
+
+    @Override
+    public int indexOfDelimiter(ByteBuffer in, int from, int to) {
+        throw new UnsupportedOperationException("Length-prefixed frames have no delimiter");
+    }
+
+    @Override
+    public void encodeHeader(int payloadLength, ByteBuffer out) {
+        out.putInt(payloadLength);
+    }
+
+    @Override
+    public void encodeDelimiter(ByteBuffer out) {
+    }
+}
@@ -0,0 +1,242 @@
+package async;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The load-generator mode of {@link ClientWithFuture}: many connections, each with several requests outstanding, and a
+ * latency histogram at the end. Start it with {@code ClientWithFuture load}, configured by system properties:
+ * <ul>
+ *     <li>{@code nio2lab.load.connections}: connections to open (default 16);</li>
+ *     <li>{@code nio2lab.load.pipeline}: requests outstanding per connection (default 8);</li>
+ *     <li>{@code nio2lab.load.rate}: requests per second over all connections, 0 (default) for closed loop;</li>
+ *     <li>{@code nio2lab.load.size}: payload bytes per request (default 32);</li>
+ *     <li>{@code nio2lab.load.warmup}, {@code nio2lab.load.duration}: seconds not measured, then measured (2 and 10).</li>
+ * </ul>
+ * Closed loop sends a new request as soon as one completes. Open loop sends at a fixed rate whatever the server does,
+ * and measures every latency from the time the request was <em>meant</em> to be sent: a request held back because the
+ * pipeline was full counts its waiting time too, which corrects for coordinated omission.
+ * <p>
+ * Each connection runs a writer and a reader thread doing blocking {@link Future#get()} calls, like
+ * {@link ClientWithFuture#sendMessage}. Replies come back in order, so the reader matches them to requests by position.
+ */
+public class LoadGenerator {
+    // The server answers every request with two frames: the echo and the suffix.
+    private static final int FRAMES_PER_RESPONSE = 2;
+
+    private final InetSocketAddress address;
+    private final FrameCodec codec;
+    private final int connections;
+    private final int pipeline;
+    private final long rate;
+    private final int payloadSize;
+    private final long warmupNanos;
+    private final long durationNanos;
+
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+
+    // Fixed once run() starts, read by every connection thread.
+    private volatile long measureFrom;
+    private volatile long measureUntil;
+    private volatile boolean running;
+
+    public LoadGenerator(InetSocketAddress address, FrameCodec codec, int connections, int pipeline, long rate,
+                         int payloadSize, long warmupSeconds, long durationSeconds) {
+        if (connections < 1 || pipeline < 1 || rate < 0 || payloadSize < 0) {
+            throw new IllegalArgumentException("connections and pipeline must be positive, rate and size not negative");
+        }
+        this.address = address;
+        this.codec = codec;
+        this.connections = connections;
+        this.pipeline = pipeline;
+        this.rate = rate;
+        this.payloadSize = payloadSize;
+        this.warmupNanos = TimeUnit.SECONDS.toNanos(warmupSeconds);
+        this.durationNanos = TimeUnit.SECONDS.toNanos(durationSeconds);
+    }
+
+    static LoadGenerator fromSystemProperties(InetSocketAddress address) {
+        return new LoadGenerator(address, FrameCodec.fromSystemProperty(),
+                Integer.getInteger("nio2lab.load.connections", 16),
+                Integer.getInteger("nio2lab.load.pipeline", 8),
+                Long.getLong("nio2lab.load.rate", 0),
+                Integer.getInteger("nio2lab.load.size", 32),
+                Long.getLong("nio2lab.load.warmup", 2),
+                Long.getLong("nio2lab.load.duration", 10));
+    }
+
+    /** Runs the whole warmup and measurement, then prints and returns the report. */
+    public String run() throws IOException, ExecutionException, InterruptedException {
+        System.out.printf("Load: %d connections x %d outstanding, %s, %d byte payloads, %ds warmup + %ds measured%n",
+                connections, pipeline, rate == 0 ? "closed loop" : rate + " req/s open loop", payloadSize,
+                TimeUnit.NANOSECONDS.toSeconds(warmupNanos), TimeUnit.NANOSECONDS.toSeconds(durationNanos));
+
+        List<Connection> opened = new ArrayList<>(connections);
+        try {
+            for (int i = 0; i < connections; i++) {
+                AsynchronousSocketChannel channel = AsynchronousSocketChannel.open();
+                opened.add(new Connection(i, channel));
+                channel.connect(address).get();
+            }
+
+            long start = System.nanoTime();
+            measureFrom = start + warmupNanos;
+            measureUntil = measureFrom + durationNanos;
+            running = true;
+            for (Connection connection : opened) {
+                connection.start(start);
+            }
+
+            long remaining;
+            while ((remaining = measureUntil - System.nanoTime()) > 0) {
+                TimeUnit.NANOSECONDS.sleep(remaining);
+            }
+        } finally {
+            running = false;
+            for (Connection connection : opened) {
+                connection.stop();
+            }
+        }
+
+        String report = report();
+        System.out.println(report);
+        return report;
+    }
+
+    String report() {
+        LatencyHistogram.Snapshot latencies = histogram.snapshot();
+        double seconds = durationNanos / 1e9;
+        return String.format("Throughput: %.0f req/s (%d completed, %d errors)%n"
+                        + "Latency (us): p50=%.1f p99=%.1f p99.9=%.1f max=%.1f mean=%.1f",
+                completed.sum() / seconds, completed.sum(), errors.sum(),
+                latencies.percentile(50) / 1e3, latencies.percentile(99) / 1e3, latencies.percentile(99.9) / 1e3,
+                latencies.max() / 1e3, latencies.mean() / 1e3);
+    }
+
+    private void completed(long intendedStart, long now) {
+        if (intendedStart >= measureFrom && now < measureUntil) {
+            histogram.record(now - intendedStart);
+            completed.increment();
+        }
+    }
+
+    private final class Connection implements FrameDecoder.FrameHandler<Connection> {
+        private final int id;
+        private final AsynchronousSocketChannel channel;
+        private final Semaphore window = new Semaphore(pipeline);
+        // When each outstanding request was meant to be sent, indexed by sequence number modulo the pipeline depth.
+        private final AtomicLongArray intendedStarts = new AtomicLongArray(pipeline);
+        private long received;
+        private int frames;
+
+        private Thread writer;
+        private Thread reader;
+
+        Connection(int id, AsynchronousSocketChannel channel) {
+            this.id = id;
+            this.channel = channel;
+        }
+
+        void start(long start) {
+            writer = new Thread(() -> write(start), "load-writer-" + id);
+            reader = new Thread(this::read, "load-reader-" + id);
+            reader.start();
+            writer.start();
+        }
+
+        void stop() throws InterruptedException, IOException {
+            channel.close();
+            if (writer != null) {
+                writer.interrupt();
+                writer.join();
+                reader.join();
+            }
+        }
+
+        private void write(long start) {
+            byte[] payload = new byte[payloadSize];
+            ByteBuffer request = ByteBuffer.allocateDirect(codec.encodedLength(payloadSize));
+            codec.encode(payload, request);
+            request.flip();
+
+            // Open loop: connections send in turn, each every `interval` nanoseconds.
+            long interval = rate == 0 ? 0 : connections * 1_000_000_000L / rate;
+            long intended = start + (rate == 0 ? 0 : id * interval / connections);
+            try {
+                for (long sent = 0; running; sent++) {
+                    if (rate == 0) {
+                        window.acquire();
+                        intended = System.nanoTime();
+                    } else {
+                        long wait;
+                        while ((wait = intended - System.nanoTime()) > 0) {
+                            LockSupport.parkNanos(wait);
+                        }
+                        window.acquire();
+                    }
+                    intendedStarts.set((int) (sent % pipeline), intended);
+
+                    request.rewind();
+                    while (request.hasRemaining()) {
+                        Future<Integer> writeResult = channel.write(request);
+                        writeResult.get();
+                    }
+                    intended += interval;
+                }
+            } catch (InterruptedException e) {
+                // Stopped.
+            } catch (ExecutionException e) {
+                failed(e);
+            }
+        }
+
+        private void read() {
+            FrameDecoder decoder = new FrameDecoder(codec);
+            try {
+                while (running) {
+                    Future<Integer> readResult = channel.read(decoder.buffer());
+                    if (readResult.get() < 0) {
+                        failed(new IOException("Server closed connection " + id));
+                        return;
+                    }
+                    decoder.decode(this, this);
+                }
+            } catch (InterruptedException e) {
+                // Stopped.
+            } catch (ExecutionException | IOException e) {
+                failed(e);
+            } finally {
+                decoder.release();
+            }
+        }
+
+        @Override
+        public void onFrame(ByteBuffer[] chunks, int count, int length, Connection connection) {
+            if (++frames % FRAMES_PER_RESPONSE != 0) {
+                return;
+            }
+            completed(intendedStarts.get((int) (received++ % pipeline)), System.nanoTime());
+            window.release();
+        }
+
+        private void failed(Exception e) {
+            if (running) {
+                errors.increment();
+                System.err.println("Connection " + id + " failed: " + e);
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package async;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The files {@link HttpProtocol} serves under {@code /files/}, memory-mapped, so a response is written straight from
+ * the page cache: no read into the heap, no copy into a socket buffer of ours.
+ * <p>
+ * Files are mapped in regions of {@code nio2lab.files.regionBytes} (default 16 MiB), on first use. The mapped regions
+ * are kept in LRU order and dropped once they add up to more than {@code nio2lab.files.cacheBytes} (default 256 MiB).
+ * Java cannot unmap a {@link MappedByteBuffer} explicitly: a dropped region stays valid for as long as a queued
+ * response still refers to it, and the garbage collector unmaps it afterwards. A region is keyed by the file's
+ * modification time and size too, so a changed file is mapped afresh.
+ * <p>
+ * Only {@code nio2lab.files.root} and below is served; without it {@code /files/} answers 404. Containment is checked
+ * on real paths, so a symbolic link under the root cannot lead outside it.
+ */
+final class MappedFileCache implements OutboundQueue.Owner {
+    static final int CHUNK_SIZE = 256 << 10;
+    static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+    static final Map<String, String> CONTENT_TYPES = Map.of(
+            "html", "text/html", "txt", "text/plain", "css", "text/css", "js", "text/javascript",
+            "json", "application/json", "png", "image/png", "jpg", "image/jpeg", "svg", "image/svg+xml");
+
+    static final MappedFileCache SHARED = new MappedFileCache(System.getProperty("nio2lab.files.root"),
+            Long.getLong("nio2lab.files.cacheBytes", 256L << 20),
+            Integer.getInteger("nio2lab.files.regionBytes", 16 << 20));
+
+    /** A file found under the root, as it was when looked up. */
+    record MappedFile(Path path, long size, long lastModified, String contentType) {
+    }
+
+    private record RegionKey(Path path, long size, long lastModified, long index) {
+    }
+
+    private final Path root;
+    private final long maxMappedBytes;
+    private final int regionSize;
+
+    // Guarded by this.
+    private final LinkedHashMap<RegionKey, MappedByteBuffer> regions = new LinkedHashMap<>(16, 0.75f, true);
+    private long mappedBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    MappedFileCache(String root, long maxMappedBytes, int regionSize) {
+        this.root = root == null ? null : realPath(Path.of(root));
+        this.maxMappedBytes = maxMappedBytes;
+        this.regionSize = regionSize;
+    }
+
+    /** The regular file at {@code relativePath} under the root, or null if there is none or it lies outside. */
+    MappedFile find(String relativePath) {
+        if (root == null || relativePath.isEmpty()) {
+            return null;
+        }
+        try {
+            Path requested = root.resolve(relativePath);
+            // Resolves every link and "..", so what is checked is what gets opened.
+            Path path = requested.toRealPath();
+            if (!path.startsWith(root)) {
+                return null;
+            }
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            if (!attributes.isRegularFile()) {
+                return null;
+            }
+            return new MappedFile(path, attributes.size(), attributes.lastModifiedTime().toMillis(), contentType(requested));
+        } catch (IOException | InvalidPathException e) {
+            return null;
+        }
+    }
+
+    /**
+     * A read-only view of up to {@link #CHUNK_SIZE} bytes of {@code file} from {@code offset}, never crossing a region.
+     * Queue it with this cache as its {@link OutboundQueue.Owner}, so it is not mistaken for a pooled buffer.
+     */
+    ByteBuffer chunk(MappedFile file, long offset) throws IOException {
+        long index = offset / regionSize;
+        int offsetInRegion = (int) (offset - index * regionSize);
+        MappedByteBuffer region = region(file, index);
+        int length = Math.min(CHUNK_SIZE, region.capacity() - offsetInRegion);
+        return region.slice(offsetInRegion, length);
+    }
+
+    /** Nothing to give back: a view keeps its region mapped by itself. */
+    @Override
+    public void release(ByteBuffer buffer, int token) {
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "mapped=" + mappedBytes + "/" + maxMappedBytes + " bytes in " + regions.size() + " regions"
+                + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions;
+    }
+
+    private MappedByteBuffer region(MappedFile file, long index) throws IOException {
+        RegionKey key = new RegionKey(file.path(), file.size(), file.lastModified(), index);
+        synchronized (this) {
+            MappedByteBuffer region = regions.get(key);
+            if (region != null) {
+                hits++;
+                return region;
+            }
+            misses++;
+        }
+
+        // Mapping outside the lock; two threads mapping the same region at once merely map it twice.
+        long start = index * regionSize;
+        MappedByteBuffer region;
+        // A link swapped in since the lookup is refused rather than followed.
+        try (FileChannel channel = FileChannel.open(file.path(), StandardOpenOption.READ, LinkOption.NOFOLLOW_LINKS)) {
+            region = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(regionSize, file.size() - start));
+        }
+        synchronized (this) {
+            MappedByteBuffer previous = regions.put(key, region);
+            if (previous != null) {
+                mappedBytes -= previous.capacity();
+            }
+            mappedBytes += region.capacity();
+            Iterator<MappedByteBuffer> eldest = regions.values().iterator();
+            while (mappedBytes > maxMappedBytes && regions.size() > 1) {
+                mappedBytes -= eldest.next().capacity();
+                eldest.remove();
+                evictions++;
+            }
+        }
+        return region;
+    }
+
+    /** The root with its links resolved, or as given if it does not exist. */
+    private static Path realPath(Path root) {
+        try {
+            return root.toRealPath();
+        } catch (IOException e) {
+            return root.toAbsolutePath().normalize();
+        }
+    }
+
+    private static String contentType(Path path) {
+        String name = path.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String type = dot < 0 ? null : CONTENT_TYPES.get(name.substring(dot + 1));
+        return type == null ? DEFAULT_CONTENT_TYPE : type;
+    }
+}
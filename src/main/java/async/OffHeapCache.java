@@ -0,0 +1,593 @@
+package async;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The key-value store behind {@link CacheProtocol}: every byte of every item lives off-heap, so however much is cached
+ * the garbage collector has nothing to scan or copy.
+ * <p>
+ * The memory budget ({@code nio2lab.cache.bytes}, default 64 MiB) is split over {@code nio2lab.cache.segments}
+ * (default 16) independently locked segments, picked by the key's hash. A segment is a slab arena in the style of
+ * memcached: direct buffers of {@link #PAGE_SIZE} bytes, allocated as needed until the budget is used up, each cut into
+ * chunks of one size class (powers of two from 64 bytes up to a page). Keys are indexed by an open-addressing hash
+ * table of chunk handles. Once a class has no free chunk and the budget allows no new page, CLOCK evicts within that
+ * class: the hand sweeps its chunks, clears the reference bit of recently read items and takes the first one not read
+ * since the last sweep.
+ * <p>
+ * Left at that, pages would stay with the sizes the cache first filled up with, and a class without a page could
+ * store nothing at all. So a class that has no chunks, or has evicted a page's worth of its own items since it last
+ * got one, takes a whole page from another class instead: a second CLOCK hand sweeps the pages, skips those with
+ * pinned, half-filled or recently read items, evicts everything on the first other page and cuts it to the new size.
+ * Pages follow the sets, like memcached's slab rebalancing.
+ * <p>
+ * An item is stored as the complete {@code VALUE} response a {@code get} sends for it, so a hit is written straight
+ * from the arena: the reader gets a view of the chunk and pins the item, which keeps it from being evicted or reused
+ * until the write completed and {@link Segment#release} unpinned it. Overwriting or deleting a pinned item only
+ * unlinks it; its chunk is freed with the last pin. The pin count is a 16-bit counter: an item already pinned
+ * {@code Short.MAX_VALUE} times is answered with a pooled copy instead. Expiry times are accepted but ignored.
+ */
+final class OffHeapCache {
+    static final int PAGE_SIZE = 1 << 20;
+    static final int MAX_KEY_LENGTH = 250;
+
+    private static final int MIN_CHUNK_SHIFT = 6;
+    private static final int CLASSES = Integer.numberOfTrailingZeros(PAGE_SIZE) - MIN_CHUNK_SHIFT + 1;
+    private static final int CHUNKS_PER_PAGE_SHIFT = Integer.numberOfTrailingZeros(PAGE_SIZE) - MIN_CHUNK_SHIFT;
+
+    // Chunk layout: a header, then the response "VALUE <key> <flags> <bytes>\r\n<data>\r\n".
+    private static final int STATE = 0;
+    private static final int REFERENCED = 1;
+    private static final int PINS = 2;
+    private static final int HASH = 4;
+    private static final int KEY_LENGTH = 8;
+    private static final int PREFIX_LENGTH = 10;
+    private static final int RESPONSE_LENGTH = 12;
+    private static final int HEADER = 16;
+    private static final int KEY = HEADER + 6;
+
+    private static final byte FREE = 0;
+    private static final byte LIVE = 1;
+    // Unlinked while pinned, freed by the last release.
+    private static final byte DEAD = 2;
+    // Reserved by a set whose data is still arriving.
+    private static final byte FILLING = 3;
+
+    private static final byte[] VALUE = "VALUE ".getBytes();
+
+    static final OffHeapCache SHARED = new OffHeapCache(Long.getLong("nio2lab.cache.bytes", 64L << 20),
+            Integer.getInteger("nio2lab.cache.segments", 16));
+
+    private final Segment[] segments;
+    private final int segmentShift;
+    private final long budget;
+
+    OffHeapCache(long budget, int segmentCount) {
+        if (Integer.bitCount(segmentCount) != 1) {
+            throw new IllegalArgumentException("nio2lab.cache.segments must be a power of two");
+        }
+        this.budget = budget;
+        segments = new Segment[segmentCount];
+        segmentShift = 32 - Integer.numberOfTrailingZeros(segmentCount);
+        int pagesPerSegment = (int) Math.max(1, budget / segmentCount / PAGE_SIZE);
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(pagesPerSegment);
+        }
+    }
+
+    /** Hashes the key in {@code in[start, end)} without moving its position. */
+    static int hash(ByteBuffer in, int start, int end) {
+        int hash = 0x811c9dc5;
+        for (int i = start; i < end; i++) {
+            hash = (hash ^ in.get(i)) * 0x01000193;
+        }
+        // FNV-1a spreads the low bits poorly; the segment takes the high ones, the index the low ones.
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        return hash ^ (hash >>> 13);
+    }
+
+    Segment segment(int hash) {
+        return segments.length == 1 ? segments[0] : segments[hash >>> segmentShift];
+    }
+
+    /** Bytes a set with this key length, flags and data length needs, or more than a page if it cannot be stored. */
+    static long itemSize(int keyLength, long flags, long dataLength) {
+        return HEADER + prefixLength(keyLength, flags, dataLength) + dataLength + 2;
+    }
+
+    private static int prefixLength(int keyLength, long flags, long dataLength) {
+        return VALUE.length + keyLength + 1 + digits(flags) + 1 + digits(dataLength) + 2;
+    }
+
+    /** The {@code stats} command's counters, summed over the segments. */
+    long[] stats() {
+        long[] totals = new long[6];
+        for (Segment segment : segments) {
+            segment.addStats(totals);
+        }
+        totals[5] = budget;
+        return totals;
+    }
+
+    static final String[] STATS = {"curr_items", "bytes", "get_hits", "get_misses", "evictions", "limit_maxbytes"};
+
+    private static int digits(long value) {
+        int digits = 1;
+        while (value >= 10) {
+            value /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+    private static void putDecimal(ByteBuffer out, int index, long value, int digits) {
+        for (int i = index + digits - 1; i >= index; i--) {
+            out.put(i, (byte) ('0' + value % 10));
+            value /= 10;
+        }
+    }
+
+    /**
+     * One independently locked part of the cache: its pages, its index and its CLOCK hands. A chunk is named by a
+     * handle, its page index and its 64-byte slot in that page.
+     */
+    static final class Segment implements OutboundQueue.Owner {
+        /** What {@link #pin} returns for an item that cannot take another pin. */
+        static final int PINNED_OUT = -2;
+
+        private static final int EMPTY = 0;
+        private static final int TOMBSTONE = -1;
+
+        private final int maxPages;
+        private ByteBuffer[] pages = new ByteBuffer[4];
+        private int[] pageClasses = new int[4];
+        private int pageCount;
+        private int pageHand;
+
+        // Per size class: every chunk cut so far, the free ones, and the CLOCK hand over the former.
+        private final int[][] chunks = new int[CLASSES][];
+        private final int[] chunkCount = new int[CLASSES];
+        private final int[][] free = new int[CLASSES][];
+        private final int[] freeCount = new int[CLASSES];
+        private final int[] hands = new int[CLASSES];
+        // Items evicted per class since it last took a page from another class.
+        private final int[] churn = new int[CLASSES];
+
+        // Open addressing with linear probing; an entry is a chunk handle + 1.
+        private final int[] table;
+        private final int tableMask;
+        private int items;
+        private int tombstones;
+
+        private long bytes;
+        private long hits;
+        private long misses;
+        private long evictions;
+
+        Segment(int maxPages) {
+            this.maxPages = maxPages;
+            int maxItems = maxPages << CHUNKS_PER_PAGE_SHIFT;
+            int tableSize = Integer.highestOneBit(Math.max(16, maxItems) - 1) << 2;
+            table = new int[tableSize];
+            tableMask = tableSize - 1;
+            for (int i = 0; i < CLASSES; i++) {
+                chunks[i] = new int[0];
+                free[i] = new int[0];
+            }
+        }
+
+        /**
+         * Looks the key up; on a hit pins the item and returns its handle for {@link #response(int)}, else -1. Returns
+         * {@link #PINNED_OUT}, and counts nothing, if the item is pinned as often as the counter holds: the caller then
+         * answers with a {@link #copy}.
+         */
+        synchronized int pin(ByteBuffer key, int start, int end, int hash) {
+            int slot = find(key, start, end, hash);
+            if (slot < 0) {
+                misses++;
+                return -1;
+            }
+            int handle = table[slot] - 1;
+            ByteBuffer page = page(handle);
+            int offset = offset(handle);
+            short pins = page.getShort(offset + PINS);
+            if (pins == Short.MAX_VALUE) {
+                return PINNED_OUT;
+            }
+            hits++;
+            page.put(offset + REFERENCED, (byte) 1);
+            page.putShort(offset + PINS, (short) (pins + 1));
+            return handle;
+        }
+
+        /** Looks the key up; on a hit returns a pooled copy of the item's {@code VALUE} response, else null. */
+        synchronized ByteBuffer copy(ByteBuffer key, int start, int end, int hash) {
+            int slot = find(key, start, end, hash);
+            if (slot < 0) {
+                misses++;
+                return null;
+            }
+            hits++;
+            int handle = table[slot] - 1;
+            ByteBuffer page = page(handle);
+            int offset = offset(handle);
+            page.put(offset + REFERENCED, (byte) 1);
+            int length = page.getInt(offset + RESPONSE_LENGTH);
+            return BufferPool.SHARED.acquire(length).put(0, page, offset + HEADER, length);
+        }
+
+        /** A view of a pinned item's {@code VALUE} response, to be written and then given back to {@link #release}. */
+        synchronized ByteBuffer response(int handle) {
+            ByteBuffer page = page(handle);
+            int offset = offset(handle);
+            return page.slice(offset + HEADER, page.getInt(offset + RESPONSE_LENGTH));
+        }
+
+        /** Unpins an item once its response was written. */
+        @Override
+        public synchronized void release(ByteBuffer buffer, int handle) {
+            ByteBuffer page = page(handle);
+            int offset = offset(handle);
+            short pins = (short) (page.getShort(offset + PINS) - 1);
+            page.putShort(offset + PINS, pins);
+            if (pins == 0 && page.get(offset + STATE) == DEAD) {
+                free(handle);
+            }
+        }
+
+        /**
+         * Reserves a chunk for a set and writes the response prefix into it; the data follows with {@link #fill}.
+         * Returns -1 if every chunk of the size class is pinned or being filled, and no other class can spare a page.
+         */
+        synchronized int reserve(ByteBuffer key, int start, int end, int hash, long flags, int dataLength) {
+            int keyLength = end - start;
+            int prefixLength = prefixLength(keyLength, flags, dataLength);
+            int size = HEADER + prefixLength + dataLength + 2;
+            int handle = allocate(sizeClass(size));
+            if (handle < 0) {
+                return -1;
+            }
+            ByteBuffer page = page(handle);
+            int offset = offset(handle);
+            page.put(offset + STATE, FILLING);
+            page.put(offset + REFERENCED, (byte) 0);
+            page.putShort(offset + PINS, (short) 0);
+            page.putInt(offset + HASH, hash);
+            page.putShort(offset + KEY_LENGTH, (short) keyLength);
+            page.putShort(offset + PREFIX_LENGTH, (short) prefixLength);
+            page.putInt(offset + RESPONSE_LENGTH, prefixLength + dataLength + 2);
+
+            int index = offset + HEADER;
+            page.put(index, VALUE);
+            index += VALUE.length;
+            page.put(index, key, start, keyLength);
+            index += keyLength;
+            page.put(index++, (byte) ' ');
+            int flagDigits = digits(flags);
+            putDecimal(page, index, flags, flagDigits);
+            index += flagDigits;
+            page.put(index++, (byte) ' ');
+            int lengthDigits = digits(dataLength);
+            putDecimal(page, index, dataLength, lengthDigits);
+            index += lengthDigits;
+            page.put(index++, (byte) '\r');
+            page.put(index, (byte) '\n');
+            return handle;
+        }
+
+        /**
+         * Copies the next {@code length} bytes of a reserved item's data, and its trailing CRLF, from {@code src}. No
+         * lock: nobody else touches a chunk while it is being filled, and {@link #commit} publishes it.
+         */
+        void fill(int handle, int written, ByteBuffer src, int srcOffset, int length) {
+            ByteBuffer page = page(handle);
+            int offset = offset(handle);
+            page.put(offset + HEADER + page.getShort(offset + PREFIX_LENGTH) + written, src, srcOffset, length);
+        }
+
+        /**
+         * Links a filled item into the index, replacing any item with the same key. Returns false, and frees the
+         * chunk, if the data did not end with CRLF.
+         */
+        synchronized boolean commit(int handle) {
+            ByteBuffer page = page(handle);
+            int offset = offset(handle);
+            int end = offset + HEADER + page.getInt(offset + RESPONSE_LENGTH);
+            if (page.get(end - 2) != '\r' || page.get(end - 1) != '\n') {
+                free(handle);
+                return false;
+            }
+            int keyLength = page.getShort(offset + KEY_LENGTH);
+            int hash = page.getInt(offset + HASH);
+            int slot = find(page, offset + KEY, offset + KEY + keyLength, hash);
+            if (slot >= 0) {
+                unlink(table[slot] - 1);
+                table[slot] = handle + 1;
+            } else {
+                insert(hash, handle);
+            }
+            page.put(offset + STATE, LIVE);
+            items++;
+            bytes += page.getInt(offset + RESPONSE_LENGTH);
+            return true;
+        }
+
+        /** Gives back a reserved chunk whose set did not complete. */
+        synchronized void abort(int handle) {
+            free(handle);
+        }
+
+        synchronized boolean delete(ByteBuffer key, int start, int end, int hash) {
+            int slot = find(key, start, end, hash);
+            if (slot < 0) {
+                return false;
+            }
+            unlink(table[slot] - 1);
+            table[slot] = TOMBSTONE;
+            tombstones++;
+            return true;
+        }
+
+        synchronized void addStats(long[] totals) {
+            totals[0] += items;
+            totals[1] += bytes;
+            totals[2] += hits;
+            totals[3] += misses;
+            totals[4] += evictions;
+        }
+
+        private int find(ByteBuffer key, int start, int end, int hash) {
+            for (int slot = hash & tableMask; ; slot = (slot + 1) & tableMask) {
+                int entry = table[slot];
+                if (entry == EMPTY) {
+                    return -1;
+                }
+                if (entry != TOMBSTONE && matches(entry - 1, key, start, end, hash)) {
+                    return slot;
+                }
+            }
+        }
+
+        private boolean matches(int handle, ByteBuffer key, int start, int end, int hash) {
+            ByteBuffer page = page(handle);
+            int offset = offset(handle);
+            int keyLength = end - start;
+            if (page.getInt(offset + HASH) != hash || page.getShort(offset + KEY_LENGTH) != keyLength) {
+                return false;
+            }
+            for (int i = 0; i < keyLength; i++) {
+                if (page.get(offset + KEY + i) != key.get(start + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void insert(int hash, int handle) {
+            if (items + tombstones + 1 > table.length - (table.length >>> 2)) {
+                rehash();
+            }
+            int slot = hash & tableMask;
+            while (table[slot] > 0) {
+                slot = (slot + 1) & tableMask;
+            }
+            if (table[slot] == TOMBSTONE) {
+                tombstones--;
+            }
+            table[slot] = handle + 1;
+        }
+
+        /** Rebuilds the index without its tombstones; the table is sized so that live items alone never fill it. */
+        private void rehash() {
+            int[] live = new int[items];
+            int count = 0;
+            for (int entry : table) {
+                if (entry > 0) {
+                    live[count++] = entry;
+                }
+            }
+            Arrays.fill(table, EMPTY);
+            tombstones = 0;
+            for (int i = 0; i < count; i++) {
+                int handle = live[i] - 1;
+                int slot = page(handle).getInt(offset(handle) + HASH) & tableMask;
+                while (table[slot] != EMPTY) {
+                    slot = (slot + 1) & tableMask;
+                }
+                table[slot] = live[i];
+            }
+        }
+
+        /** Takes a live item out of the count; its chunk is freed now, or by the last release if pinned. */
+        private void unlink(int handle) {
+            ByteBuffer page = page(handle);
+            int offset = offset(handle);
+            items--;
+            bytes -= page.getInt(offset + RESPONSE_LENGTH);
+            if (page.getShort(offset + PINS) > 0) {
+                page.put(offset + STATE, DEAD);
+            } else {
+                free(handle);
+            }
+        }
+
+        /** Removes an item's index entry, found by identity rather than by key. */
+        private void removeEntry(int handle) {
+            int hash = page(handle).getInt(offset(handle) + HASH);
+            int slot = hash & tableMask;
+            while (table[slot] != handle + 1) {
+                slot = (slot + 1) & tableMask;
+            }
+            table[slot] = TOMBSTONE;
+            tombstones++;
+        }
+
+        private int allocate(int sizeClass) {
+            if (freeCount[sizeClass] > 0) {
+                return free[sizeClass][--freeCount[sizeClass]];
+            }
+            if (pageCount < maxPages) {
+                addPage(sizeClass);
+                return free[sizeClass][--freeCount[sizeClass]];
+            }
+            boolean triedPage = false;
+            if (chunkCount[sizeClass] == 0 || churn[sizeClass] >= PAGE_SIZE >> (sizeClass + MIN_CHUNK_SHIFT)) {
+                churn[sizeClass] = 0;
+                triedPage = true;
+                if (reassignPage(sizeClass)) {
+                    return free[sizeClass][--freeCount[sizeClass]];
+                }
+            }
+            int handle = evict(sizeClass);
+            if (handle >= 0) {
+                churn[sizeClass]++;
+                return handle;
+            }
+            // Every chunk of the class is pinned or being filled.
+            if (!triedPage && reassignPage(sizeClass)) {
+                return free[sizeClass][--freeCount[sizeClass]];
+            }
+            return -1;
+        }
+
+        /** CLOCK: two turns of the hand are enough to find an item not read since its bit was cleared, if any. */
+        private int evict(int sizeClass) {
+            int count = chunkCount[sizeClass];
+            int[] classChunks = chunks[sizeClass];
+            for (int step = 0; step < 2 * count; step++) {
+                int handle = classChunks[hands[sizeClass]];
+                hands[sizeClass] = (hands[sizeClass] + 1) % count;
+                ByteBuffer page = page(handle);
+                int offset = offset(handle);
+                if (page.get(offset + STATE) != LIVE || page.getShort(offset + PINS) > 0) {
+                    continue;
+                }
+                if (page.get(offset + REFERENCED) != 0) {
+                    page.put(offset + REFERENCED, (byte) 0);
+                    continue;
+                }
+                removeEntry(handle);
+                items--;
+                bytes -= page.getInt(offset + RESPONSE_LENGTH);
+                evictions++;
+                return handle;
+            }
+            return -1;
+        }
+
+        /**
+         * CLOCK over whole pages: two turns of the page hand find a page of another class with nothing pinned or being
+         * filled and nothing read since its bits were cleared, if any. Its items are evicted and it is cut for
+         * {@code sizeClass}.
+         */
+        private boolean reassignPage(int sizeClass) {
+            for (int step = 0; step < 2 * pageCount; step++) {
+                int pageIndex = pageHand;
+                pageHand = (pageHand + 1) % pageCount;
+                int owner = pageClasses[pageIndex];
+                if (owner != sizeClass && reclaimable(pageIndex, owner)) {
+                    evictPage(pageIndex, owner);
+                    cutPage(pageIndex, sizeClass);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /** False if a chunk of the page is in use or was read since the last sweep; clears the reference bits. */
+        private boolean reclaimable(int pageIndex, int sizeClass) {
+            ByteBuffer page = pages[pageIndex];
+            boolean referenced = false;
+            for (int offset = 0; offset < PAGE_SIZE; offset += 1 << (sizeClass + MIN_CHUNK_SHIFT)) {
+                byte state = page.get(offset + STATE);
+                if (state == FILLING || (state != FREE && page.getShort(offset + PINS) > 0)) {
+                    return false;
+                }
+                if (state == LIVE && page.get(offset + REFERENCED) != 0) {
+                    page.put(offset + REFERENCED, (byte) 0);
+                    referenced = true;
+                }
+            }
+            return !referenced;
+        }
+
+        /** Evicts every item on a page and takes its chunks out of the class's lists. */
+        private void evictPage(int pageIndex, int sizeClass) {
+            ByteBuffer page = pages[pageIndex];
+            for (int offset = 0; offset < PAGE_SIZE; offset += 1 << (sizeClass + MIN_CHUNK_SHIFT)) {
+                if (page.get(offset + STATE) == LIVE) {
+                    int handle = (pageIndex << CHUNKS_PER_PAGE_SHIFT) | (offset >>> MIN_CHUNK_SHIFT);
+                    removeEntry(handle);
+                    items--;
+                    bytes -= page.getInt(offset + RESPONSE_LENGTH);
+                    evictions++;
+                }
+            }
+            chunkCount[sizeClass] = removePage(chunks[sizeClass], chunkCount[sizeClass], pageIndex);
+            freeCount[sizeClass] = removePage(free[sizeClass], freeCount[sizeClass], pageIndex);
+            if (hands[sizeClass] >= chunkCount[sizeClass]) {
+                hands[sizeClass] = 0;
+            }
+        }
+
+        /** Drops the handles of a page from {@code handles[0, count)}, keeping the others in order; returns the new count. */
+        private static int removePage(int[] handles, int count, int pageIndex) {
+            int kept = 0;
+            for (int i = 0; i < count; i++) {
+                if (handles[i] >>> CHUNKS_PER_PAGE_SHIFT != pageIndex) {
+                    handles[kept++] = handles[i];
+                }
+            }
+            return kept;
+        }
+
+        private void addPage(int sizeClass) {
+            if (pageCount == pages.length) {
+                pages = Arrays.copyOf(pages, pages.length * 2);
+                pageClasses = Arrays.copyOf(pageClasses, pages.length);
+            }
+            int pageIndex = pageCount++;
+            pages[pageIndex] = ByteBuffer.allocateDirect(PAGE_SIZE);
+            cutPage(pageIndex, sizeClass);
+        }
+
+        /** Cuts a new or reclaimed page into free chunks of {@code sizeClass}. */
+        private void cutPage(int pageIndex, int sizeClass) {
+            pageClasses[pageIndex] = sizeClass;
+            ByteBuffer page = pages[pageIndex];
+            int chunkSize = 1 << (sizeClass + MIN_CHUNK_SHIFT);
+            int perPage = PAGE_SIZE / chunkSize;
+            int count = chunkCount[sizeClass];
+            chunks[sizeClass] = Arrays.copyOf(chunks[sizeClass], count + perPage);
+            free[sizeClass] = Arrays.copyOf(free[sizeClass], Math.max(free[sizeClass].length, count + perPage));
+            // Pushed in reverse, so the page is handed out from its start.
+            for (int i = perPage - 1; i >= 0; i--) {
+                int handle = (pageIndex << CHUNKS_PER_PAGE_SHIFT) | (i << sizeClass);
+                page.put(i * chunkSize + STATE, FREE);
+                chunks[sizeClass][chunkCount[sizeClass]++] = handle;
+                free[sizeClass][freeCount[sizeClass]++] = handle;
+            }
+        }
+
+        private void free(int handle) {
+            ByteBuffer page = page(handle);
+            int offset = offset(handle);
+            page.put(offset + STATE, FREE);
+            int sizeClass = sizeClass(HEADER + page.getInt(offset + RESPONSE_LENGTH));
+            free[sizeClass][freeCount[sizeClass]++] = handle;
+        }
+
+        private ByteBuffer page(int handle) {
+            return pages[handle >>> CHUNKS_PER_PAGE_SHIFT];
+        }
+
+        private static int offset(int handle) {
+            return (handle & ((1 << CHUNKS_PER_PAGE_SHIFT) - 1)) << MIN_CHUNK_SHIFT;
+        }
+
+        private static int sizeClass(int size) {
+            return Math.max(0, 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_CHUNK_SHIFT);
+        }
+    }
+}
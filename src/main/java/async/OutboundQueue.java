@@ -0,0 +1,117 @@
+package async;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The replies a connection still has to write, in order, laid out so the pending part can be passed straight to
+ * {@link java.nio.channels.AsynchronousSocketChannel#write(ByteBuffer[], int, int, long, java.util.concurrent.TimeUnit,
+ * Object, java.nio.channels.CompletionHandler) a gathering write}.
+ * <p>
+ * Every buffer handed to {@link #add(ByteBuffer)} must come from the {@link BufferPool}; the queue owns it from then on
+ * and releases it once it has been written out completely. A buffer that belongs elsewhere, such as a view of a cached
+ * value, is added with its {@link Owner} instead, which gets it back at that point.
+ * <p>
+ * Not thread-safe: {@link ConnectionContext} guards it. The slots {@code [offset(), offset() + length())} belong to the
+ * channel while a write is in flight, so they are only rearranged from {@link #written(long)}, after that write
+ * completed.
+ */
+final class OutboundQueue {
+    /** Takes back a buffer that did not come from the pool, once it has been written or dropped. */
+    interface Owner {
+        void release(ByteBuffer buffer, int token);
+    }
+
+    private ByteBuffer[] buffers = new ByteBuffer[16];
+    // Parallel to buffers: null for pooled buffers.
+    private Owner[] owners = new Owner[16];
+    private int[] tokens = new int[16];
+    private int head;
+    private int tail;
+    private long pendingBytes;
+
+    void add(ByteBuffer buffer) {
+        add(buffer, null, 0);
+    }
+
+    /** Queues a buffer that {@code owner} gets back, with {@code token}, instead of the pool. */
+    void add(ByteBuffer buffer, Owner owner, int token) {
+        if (tail == buffers.length) {
+            // Growing leaves the old array (and whatever write still refers to it) untouched.
+            ByteBuffer[] grown = new ByteBuffer[buffers.length * 2];
+            System.arraycopy(buffers, 0, grown, 0, tail);
+            buffers = grown;
+            owners = Arrays.copyOf(owners, grown.length);
+            tokens = Arrays.copyOf(tokens, grown.length);
+        }
+        owners[tail] = owner;
+        tokens[tail] = token;
+        buffers[tail++] = buffer;
+        pendingBytes += buffer.remaining();
+    }
+
+    boolean isEmpty() {
+        return head == tail;
+    }
+
+    long pendingBytes() {
+        return pendingBytes;
+    }
+
+    ByteBuffer[] array() {
+        return buffers;
+    }
+
+    int offset() {
+        return head;
+    }
+
+    int length() {
+        return tail - head;
+    }
+
+    /**
+     * Accounts for a completed write of {@code bytes}: releases every buffer that is fully written and moves a
+     * partially written one, plus everything queued behind it, to the front.
+     */
+    void written(long bytes) {
+        pendingBytes -= bytes;
+        while (head < tail && !buffers[head].hasRemaining()) {
+            release(head++);
+        }
+        if (head == tail) {
+            head = tail = 0;
+        } else if (head > 0) {
+            int length = tail - head;
+            System.arraycopy(buffers, head, buffers, 0, length);
+            System.arraycopy(owners, head, owners, 0, length);
+            System.arraycopy(tokens, head, tokens, 0, length);
+            Arrays.fill(buffers, length, tail, null);
+            Arrays.fill(owners, length, tail, null);
+            head = 0;
+            tail = length;
+        }
+    }
+
+    /** Releases everything still queued, returns the number of bytes that will never be written. */
+    long releaseAll() {
+        for (int i = head; i < tail; i++) {
+            release(i);
+        }
+        head = tail = 0;
+        long dropped = pendingBytes;
+        pendingBytes = 0;
+        return dropped;
+    }
+
+    private void release(int index) {
+        Owner owner = owners[index];
+        if (owner == null) {
+            BufferPool.SHARED.release(buffers[index]);
+        } else {
+            owner.release(buffers[index], tokens[index]);
+            owners[index] = null;
+        }
+        buffers[index] = null;
+    }
+}
@@ -0,0 +1,61 @@
+package async;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * What a {@link ServerWithCompletionHandler} connection speaks: turns the bytes it reads into replies. One instance
+ * per connection, owning the pooled buffer reads go into; only the read path calls it, one read at a time.
+ */
+interface Protocol {
+    enum Type {
+        ECHO,
+        HTTP,
+        CACHE;
+
+        /** The protocol selected by {@code -Dnio2lab.protocol}: {@code echo} (default), {@code http} or {@code cache}. */
+        static Type fromSystemProperty() {
+            String name = System.getProperty("nio2lab.protocol", "echo");
+            return switch (name) {
+                case "echo" -> ECHO;
+                case "http" -> HTTP;
+                case "cache" -> CACHE;
+                default -> throw new IllegalArgumentException("Unknown protocol: " + name);
+            };
+        }
+
+        /** The state of a new connection; echo frames its messages with {@code codec}, the others ignore it. */
+        Protocol open(FrameCodec codec) {
+            return switch (this) {
+                case ECHO -> new EchoProtocol(codec);
+                case HTTP -> new HttpProtocol();
+                case CACHE -> new CacheProtocol();
+            };
+        }
+    }
+
+    /** The buffer the next read must go into, in write mode. */
+    ByteBuffer buffer();
+
+    /** True while part of a request has been read but not handled yet. */
+    boolean hasPartialRequest();
+
+    /**
+     * Handles every complete request read so far, queueing the replies with {@link ConnectionContext#send}, and keeps
+     * the rest for the next read. Returns false when the connection should close once the replies are written.
+     *
+     * @throws ProtocolException if the client sent something it cannot be answered for
+     */
+    boolean process(ConnectionContext context) throws ProtocolException;
+
+    /**
+     * True while a response is only partly queued, e.g. a file streamed in chunks as the earlier ones are written; the
+     * connection reads no further requests meanwhile, and calls {@link #process} again once the replies drained.
+     */
+    default boolean hasMoreOutput() {
+        return false;
+    }
+
+    /** Gives the pooled buffers back. The protocol must not be used afterwards. */
+    void release();
+}
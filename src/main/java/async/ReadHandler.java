@@ -0,0 +1,78 @@
+package async;
+
+import java.net.ProtocolException;
+import java.nio.channels.CompletionHandler;
+
+/**
+ * Handles a completed read: lets the connection's {@link Protocol} queue a reply for every complete request, such as an
+ * {@link Echo} for every frame, flushes them together, and reads again right away so pipelined requests keep flowing
+ * while earlier replies are still being written.
+ * Stateless, so one instance serves every connection.
+ */
+final class ReadHandler implements CompletionHandler<Integer, ConnectionContext> {
+    static final ReadHandler INSTANCE = new ReadHandler();
+
+    @Override
+    public void completed(Integer result, ConnectionContext context) {
+        long start = System.nanoTime();
+        try {
+            handle(result, context);
+        } finally {
+            ServerMetrics.SHARED.handlerTime(System.nanoTime() - start);
+        }
+    }
+
+    private void handle(int result, ConnectionContext context) {
+        if (!context.readCompleted()) {
+            return;
+        }
+        if (result < 0) {
+            // The client closed its side: finish the replies already queued, then close.
+            context.shutdownAfterFlush();
+            return;
+        }
+        ServerMetrics.SHARED.read(result);
+        if (context.acceptedNanos != 0 && result > 0) {
+            ServerMetrics.SHARED.firstByte(context.acceptedNanos);
+            context.acceptedNanos = 0;
+        }
+        process(context);
+    }
+
+    /** Continues a connection whose reading was paused until its replies drained: the protocol may have more to send. */
+    void resume(ConnectionContext context) {
+        if (context.resumeReading()) {
+            process(context);
+        }
+    }
+
+    private void process(ConnectionContext context) {
+        boolean again = true;
+        while (again) {
+            boolean keepReading;
+            try {
+                keepReading = context.protocol.process(context);
+            } catch (ProtocolException e) {
+                System.err.println("Decoding clientChannel failed: " + e.getMessage());
+                context.readFailed();
+                return;
+            }
+            context.flush();
+            if (!keepReading) {
+                context.shutdownAfterFlush();
+                return;
+            }
+            // A loop rather than recursion: a long stream whose writes complete at once must not grow the stack.
+            again = context.read();
+        }
+    }
+
+    @Override
+    public void failed(Throwable exc, ConnectionContext context) {
+        if (context.readCompleted()) {
+            System.err.println("Reading clientChannel failed");
+            exc.printStackTrace();
+            context.readFailed();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package async;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Flow control for {@link ServerWithCompletionHandler}, so a slow reader or an overload cannot grow memory without
+ * bound.
+ * <p>
+ * Per connection, a reply queue above {@link #HIGH_WATERMARK} bytes stops the connection from reading (and thus from
+ * producing more replies) until it drains below {@link #LOW_WATERMARK}. Server-wide, the shards stop re-arming
+ * {@code accept} while there are {@link #MAX_CONNECTIONS} connections or {@link #MAX_IN_FLIGHT_BYTES} queued reply
+ * bytes, and pick up again once a connection closes or replies drain; new clients wait in the kernel backlog meanwhile.
+ */
+final class ServerLimits {
+    static final int MAX_CONNECTIONS = Integer.getInteger("nio2lab.maxConnections", 10_000);
+    static final long MAX_IN_FLIGHT_BYTES = Long.getLong("nio2lab.maxInFlightBytes", 256L << 20);
+    static final int HIGH_WATERMARK = Integer.getInteger("nio2lab.writeHighWatermark", 64 << 10);
+    static final int LOW_WATERMARK = Integer.getInteger("nio2lab.writeLowWatermark", 16 << 10);
+    // After a failed accept, e.g. out of file descriptors, the servers wait before trying again: doubling, up to the max.
+    static final long MIN_ACCEPT_BACKOFF_MILLIS = 10;
+    static final long MAX_ACCEPT_BACKOFF_MILLIS = 1000;
+
+    private final int maxConnections;
+    private final long maxInFlightBytes;
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private final LongAdder inFlightBytes = new LongAdder();
+    private final List<Shard> shards = new CopyOnWriteArrayList<>();
+    private final AtomicInteger parkedShards = new AtomicInteger();
+    private final LongAdder acceptPauses = new LongAdder();
+
+    /** The pause after another failed accept, given the previous one; 0 means the last accept succeeded. */
+    static long acceptBackoff(long previousMillis) {
+        return Math.min(MAX_ACCEPT_BACKOFF_MILLIS, Math.max(MIN_ACCEPT_BACKOFF_MILLIS, previousMillis * 2));
+    }
+
+    ServerLimits() {
+        this(MAX_CONNECTIONS, MAX_IN_FLIGHT_BYTES);
+    }
+
+    ServerLimits(int maxConnections, long maxInFlightBytes) {
+        if (LOW_WATERMARK > HIGH_WATERMARK) {
+            throw new IllegalArgumentException("nio2lab.writeLowWatermark must not exceed nio2lab.writeHighWatermark");
+        }
+        this.maxConnections = maxConnections;
+        this.maxInFlightBytes = maxInFlightBytes;
+    }
+
+    void register(Shard shard) {
+        shards.add(shard);
+    }
+
+    boolean canAccept() {
+        return connections.get() < maxConnections && inFlightBytes.sum() < maxInFlightBytes;
+    }
+
+    void connectionOpened() {
+        connections.incrementAndGet();
+    }
+
+    void connectionClosed() {
+        connections.decrementAndGet();
+        wakeParkedShards();
+    }
+
+    void bytesQueued(long bytes) {
+        inFlightBytes.add(bytes);
+    }
+
+    void bytesWritten(long bytes) {
+        inFlightBytes.add(-bytes);
+        wakeParkedShards();
+    }
+
+    void shardParked() {
+        parkedShards.incrementAndGet();
+        acceptPauses.increment();
+    }
+
+    void shardUnparked() {
+        parkedShards.decrementAndGet();
+    }
+
+    int connections() {
+        return connections.get();
+    }
+
+    long inFlightBytes() {
+        return inFlightBytes.sum();
+    }
+
+    /** How often a shard had to stop accepting. */
+    long acceptPauses() {
+        return acceptPauses.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "connections=" + connections() + "/" + maxConnections
+                + ", inFlightBytes=" + inFlightBytes() + "/" + maxInFlightBytes
+                + ", acceptPauses=" + acceptPauses();
+    }
+
+    private void wakeParkedShards() {
+        // The common case, nobody parked, costs one volatile read.
+        if (parkedShards.get() == 0 || !canAccept()) {
+            return;
+        }
+        for (Shard shard : shards) {
+            shard.unpark();
+        }
+    }
+}
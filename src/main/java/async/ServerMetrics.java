@@ -0,0 +1,269 @@
+package async;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms for both servers, shared by every connection.
+ * <p>
+ * Recording is a {@link LongAdder} increment or a {@link LatencyHistogram} bucket increment: striped, lock-free and
+ * allocation-free, cheap enough for every completion. Reading is the expensive side, it happens over JMX
+ * ({@link ServerMetricsMXBean}) and in the periodic dump enabled by {@code -Dnio2lab.metrics.dumpSeconds}.
+ * {@code -Dnio2lab.metrics=false} turns recording off entirely, to measure what it costs.
+ */
+public final class ServerMetrics implements ServerMetricsMXBean {
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("nio2lab.metrics", "true"));
+    static final String OBJECT_NAME = "async:type=ServerMetrics";
+
+    public static final ServerMetrics SHARED = new ServerMetrics();
+
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder closed = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder reads = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder pendingWriteBytes = new LongAdder();
+    private final LatencyHistogram handlerTime = new LatencyHistogram();
+    private final LatencyHistogram acceptToFirstByte = new LatencyHistogram();
+
+    // Where the per-second rates were last computed from; only touched under the monitor.
+    private long lastRateNanos = System.nanoTime();
+    private long lastReads;
+    private long lastWrites;
+    private double readsPerSecond;
+    private double writesPerSecond;
+
+    private boolean started;
+
+    private ServerMetrics() {
+    }
+
+    /** Registers the MBean and starts the periodic dump, once per JVM. */
+    synchronized void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            System.err.println("Registering " + OBJECT_NAME + " failed: " + e);
+        }
+
+        long dumpSeconds = Long.getLong("nio2lab.metrics.dumpSeconds", 0);
+        if (dumpSeconds > 0) {
+            ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "ServerMetrics-dump");
+                thread.setDaemon(true);
+                return thread;
+            });
+            dumper.scheduleAtFixedRate(() -> System.out.println(snapshot()), dumpSeconds, dumpSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    void connectionAccepted() {
+        if (ENABLED) {
+            accepted.increment();
+        }
+    }
+
+    void connectionClosed() {
+        if (ENABLED) {
+            closed.increment();
+        }
+    }
+
+    void read(long bytes) {
+        if (ENABLED) {
+            reads.increment();
+            bytesRead.add(bytes);
+        }
+    }
+
+    void written(long bytes) {
+        if (ENABLED) {
+            writes.increment();
+            bytesWritten.add(bytes);
+        }
+    }
+
+    /** Reply bytes queued (positive) or written or dropped (negative). */
+    void pendingWriteBytes(long delta) {
+        if (ENABLED) {
+            pendingWriteBytes.add(delta);
+        }
+    }
+
+    void handlerTime(long nanos) {
+        if (ENABLED) {
+            handlerTime.record(nanos);
+        }
+    }
+
+    void firstByte(long acceptedNanos) {
+        if (ENABLED) {
+            acceptToFirstByte.record(System.nanoTime() - acceptedNanos);
+        }
+    }
+
+    /** One line with everything, as printed by the periodic dump. */
+    String snapshot() {
+        updateRates();
+        LatencyHistogram.Snapshot handler = handlerTime.snapshot();
+        LatencyHistogram.Snapshot firstByte = acceptToFirstByte.snapshot();
+        return String.format("metrics: connections accepted=%d active=%d closed=%d"
+                        + " | read %d B in %d reads (%.0f/s) | written %d B in %d writes (%.0f/s) | pending %d B"
+                        + " | handler us p50=%.1f p99=%.1f max=%.1f | first byte us p50=%.1f p99=%.1f max=%.1f"
+                        + " | timeouts idle=%d read=%d write=%d | pool hits=%d misses=%d outstanding=%d",
+                getAcceptedConnections(), getActiveConnections(), getClosedConnections(),
+                getBytesRead(), getReads(), readsPerSecond, getBytesWritten(), getWrites(), writesPerSecond,
+                getPendingWriteBytes(),
+                handler.percentile(50) / 1e3, handler.percentile(99) / 1e3, handler.max() / 1e3,
+                firstByte.percentile(50) / 1e3, firstByte.percentile(99) / 1e3, firstByte.max() / 1e3,
+                getIdleTimeouts(), getReadTimeouts(), getWriteTimeouts(),
+                getBufferPoolHits(), getBufferPoolMisses(), getBufferPoolOutstanding());
+    }
+
+    @Override
+    public long getAcceptedConnections() {
+        return accepted.sum();
+    }
+
+    @Override
+    public long getActiveConnections() {
+        // Read closed first, so a connection closing in between cannot make this negative.
+        long closedConnections = closed.sum();
+        return accepted.sum() - closedConnections;
+    }
+
+    @Override
+    public long getClosedConnections() {
+        return closed.sum();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public long getReads() {
+        return reads.sum();
+    }
+
+    @Override
+    public long getWrites() {
+        return writes.sum();
+    }
+
+    /** Since the previous call of either rate getter or {@link #snapshot()}. */
+    @Override
+    public synchronized double getReadsPerSecond() {
+        updateRates();
+        return readsPerSecond;
+    }
+
+    /** Since the previous call of either rate getter or {@link #snapshot()}. */
+    @Override
+    public synchronized double getWritesPerSecond() {
+        updateRates();
+        return writesPerSecond;
+    }
+
+    @Override
+    public long getPendingWriteBytes() {
+        return pendingWriteBytes.sum();
+    }
+
+    @Override
+    public double getHandlerTimeP50Micros() {
+        return handlerTime.snapshot().percentile(50) / 1e3;
+    }
+
+    @Override
+    public double getHandlerTimeP99Micros() {
+        return handlerTime.snapshot().percentile(99) / 1e3;
+    }
+
+    @Override
+    public double getHandlerTimeMaxMicros() {
+        return handlerTime.snapshot().max() / 1e3;
+    }
+
+    @Override
+    public double getAcceptToFirstByteP50Micros() {
+        return acceptToFirstByte.snapshot().percentile(50) / 1e3;
+    }
+
+    @Override
+    public double getAcceptToFirstByteP99Micros() {
+        return acceptToFirstByte.snapshot().percentile(99) / 1e3;
+    }
+
+    @Override
+    public double getAcceptToFirstByteMaxMicros() {
+        return acceptToFirstByte.snapshot().max() / 1e3;
+    }
+
+    @Override
+    public long getIdleTimeouts() {
+        return TimeoutWheel.SHARED.reaped(TimeoutWheel.Kind.IDLE);
+    }
+
+    @Override
+    public long getReadTimeouts() {
+        return TimeoutWheel.SHARED.reaped(TimeoutWheel.Kind.READ);
+    }
+
+    @Override
+    public long getWriteTimeouts() {
+        return TimeoutWheel.SHARED.reaped(TimeoutWheel.Kind.WRITE);
+    }
+
+    @Override
+    public long getBufferPoolHits() {
+        return BufferPool.SHARED.hits();
+    }
+
+    @Override
+    public long getBufferPoolMisses() {
+        return BufferPool.SHARED.misses();
+    }
+
+    @Override
+    public long getBufferPoolOutstanding() {
+        return BufferPool.SHARED.outstanding();
+    }
+
+    @Override
+    public void resetLatencies() {
+        handlerTime.reset();
+        acceptToFirstByte.reset();
+    }
+
+    private synchronized void updateRates() {
+        long now = System.nanoTime();
+        double seconds = (now - lastRateNanos) / 1e9;
+        if (seconds < 0.001) {
+            return;
+        }
+        long currentReads = getReads();
+        long currentWrites = getWrites();
+        readsPerSecond = (currentReads - lastReads) / seconds;
+        writesPerSecond = (currentWrites - lastWrites) / seconds;
+        lastReads = currentReads;
+        lastWrites = currentWrites;
+        lastRateNanos = now;
+    }
+}
@@ -0,0 +1,53 @@
+package async;
+
+/**
+ * What {@link ServerMetrics} shows over JMX, under {@value ServerMetrics#OBJECT_NAME}. Latencies are in microseconds.
+ */
+public interface ServerMetricsMXBean {
+    long getAcceptedConnections();
+
+    long getActiveConnections();
+
+    long getClosedConnections();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    long getReads();
+
+    long getWrites();
+
+    double getReadsPerSecond();
+
+    double getWritesPerSecond();
+
+    long getPendingWriteBytes();
+
+    double getHandlerTimeP50Micros();
+
+    double getHandlerTimeP99Micros();
+
+    double getHandlerTimeMaxMicros();
+
+    double getAcceptToFirstByteP50Micros();
+
+    double getAcceptToFirstByteP99Micros();
+
+    double getAcceptToFirstByteMaxMicros();
+
+    long getIdleTimeouts();
+
+    long getReadTimeouts();
+
+    long getWriteTimeouts();
+
+    long getBufferPoolHits();
+
+    long getBufferPoolMisses();
+
+    long getBufferPoolOutstanding();
+
+    /** Clears the latency histograms, e.g. between two load tests. Counters keep counting. */
+    void resetLatencies();
+}
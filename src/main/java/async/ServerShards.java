@@ -0,0 +1,166 @@
+package async;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The accepting side of {@link ServerWithCompletionHandler}, split into independent shards.
+ * <p>
+ * Opened with the default group, every completion runs on the JDK's shared, unbounded cached pool and one accept chain
+ * takes every connection. Instead, each shard here owns an {@link AsynchronousChannelGroup} with a fixed pool of
+ * threads and its own server channel, all bound to the same port with {@code SO_REUSEPORT}, so the kernel spreads new
+ * connections over the shards and a connection's completions stay on its shard's threads.
+ * <p>
+ * {@code -Dnio2lab.shards} sets the number of shards (default: one per available processor) and
+ * {@code -Dnio2lab.shardThreads} the threads per shard (default: processors / shards, at least one). Java cannot pin
+ * threads to cores, sizing the pools to the core count is as close as it gets.
+ */
+final class ServerShards {
+    static final int PROCESSORS = Runtime.getRuntime().availableProcessors();
+    static final int SHARDS = Integer.getInteger("nio2lab.shards", PROCESSORS);
+    static final int THREADS_PER_SHARD = Integer.getInteger("nio2lab.shardThreads", Math.max(1, PROCESSORS / SHARDS));
+
+    private final List<Shard> shards;
+    private final ServerLimits limits;
+
+    private ServerShards(List<Shard> shards, ServerLimits limits) {
+        this.shards = shards;
+        this.limits = limits;
+    }
+
+    static ServerShards open(SocketAddress address, FrameCodec codec) throws IOException {
+        return open(address, Protocol.Type.fromSystemProperty(), codec, new ServerLimits(), SHARDS, THREADS_PER_SHARD);
+    }
+
+    static ServerShards open(SocketAddress address, FrameCodec codec, ServerLimits limits, int shardCount, int threadsPerShard)
+            throws IOException {
+        return open(address, Protocol.Type.ECHO, codec, limits, shardCount, threadsPerShard);
+    }
+
+    static ServerShards open(SocketAddress address, Protocol.Type protocol, FrameCodec codec, ServerLimits limits,
+                             int shardCount, int threadsPerShard) throws IOException {
+        if (shardCount < 1 || threadsPerShard < 1) {
+            throw new IllegalArgumentException("Need at least one shard and one thread per shard");
+        }
+
+        List<Shard> shards = new ArrayList<>(shardCount);
+        ServerShards serverShards = new ServerShards(shards, limits);
+        try {
+            for (int id = 0; id < shardCount; id++) {
+                AsynchronousChannelGroup group = AsynchronousChannelGroup.withFixedThreadPool(threadsPerShard, threadFactory(id));
+                AsynchronousServerSocketChannel serverChannel = AsynchronousServerSocketChannel.open(group);
+                Shard shard = new Shard(id, group, serverChannel, protocol, codec, limits);
+                shards.add(shard);
+                limits.register(shard);
+
+                if (shardCount > 1) {
+                    if (serverChannel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                        serverChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                    } else {
+                        System.err.println("SO_REUSEPORT is not supported here, falling back to a single shard");
+                        // Ends the loop once this shard is bound, without the option, as the only one.
+                        shardCount = 1;
+                    }
+                }
+                serverChannel.bind(address);
+                // With port 0 the first bind picks the port, the other shards must join that one.
+                address = serverChannel.getLocalAddress();
+            }
+        } catch (IOException | RuntimeException e) {
+            serverShards.close();
+            throw e;
+        }
+
+        shards.forEach(Shard::accept);
+        return serverShards;
+    }
+
+    InetSocketAddress localAddress() throws IOException {
+        return (InetSocketAddress) shards.get(0).serverChannel.getLocalAddress();
+    }
+
+    List<Shard> shards() {
+        return shards;
+    }
+
+    ServerLimits limits() {
+        return limits;
+    }
+
+    /** Per-shard connection counts, and how far the busiest shard is above the average. */
+    String balanceReport() {
+        StringBuilder report = new StringBuilder();
+        int maxActive = 0;
+        long totalActive = 0;
+        long maxAccepted = 0;
+        long totalAccepted = 0;
+        for (Shard shard : shards) {
+            int active = shard.activeConnections();
+            long accepted = shard.acceptedConnections();
+            report.append("shard ").append(shard.id)
+                    .append(": active=").append(active)
+                    .append(", accepted=").append(accepted)
+                    .append(shard.isParked() ? ", not accepting" : "").append('\n');
+            maxActive = Math.max(maxActive, active);
+            totalActive += active;
+            maxAccepted = Math.max(maxAccepted, accepted);
+            totalAccepted += accepted;
+        }
+        report.append(String.format("imbalance (max / mean): active=%.2f, accepted=%.2f%n",
+                imbalance(maxActive, totalActive), imbalance(maxAccepted, totalAccepted)));
+        report.append("limits: ").append(limits);
+        return report.toString();
+    }
+
+    /** Closes every server channel and shuts the groups down, which closes every connection too. */
+    void close() {
+        for (Shard shard : shards) {
+            try {
+                shard.serverChannel.close();
+            } catch (IOException e) {
+                System.err.println("Closing shard " + shard.id + " failed: " + e);
+            } finally {
+                try {
+                    shard.group.shutdownNow();
+                } catch (IOException e) {
+                    System.err.println("Shutting down shard " + shard.id + " failed: " + e);
+                }
+            }
+        }
+    }
+
+    void awaitTermination() throws InterruptedException {
+        for (Shard shard : shards) {
+            shard.group.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        }
+    }
+
+    /** Waits up to {@code timeout} for every shard's threads to finish; returns false if some still run. */
+    boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Shard shard : shards) {
+            if (!shard.group.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private double imbalance(long max, long total) {
+        return total == 0 ? 1.0 : max / ((double) total / shards.size());
+    }
+
+    private static ThreadFactory threadFactory(int shard) {
+        AtomicInteger threadCount = new AtomicInteger();
+        return task -> new Thread(task, "shard-" + shard + "-" + threadCount.incrementAndGet());
+    }
+}
@@ -1,13 +1,7 @@
 package async;
 
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
-import java.nio.channels.AsynchronousServerSocketChannel;
-import java.nio.channels.AsynchronousSocketChannel;
-import java.nio.channels.CompletionHandler;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @see <a href="https://www.baeldung.com/java-nio2-async-socket-channel">A Guide to NIO2 Asynchronous Socket Channel</a>
@@ -20,89 +14,45 @@ public class ServerWithCompletionHandler {
 
     void run() throws Exception {
         System.out.println("Hello, NIO2 async with CompletionHandler!");
-
-        // An instance of AsynchronousServerSocketChannel is created by calling the static open API on its class:
-        AsynchronousServerSocketChannel serverChannel = AsynchronousServerSocketChannel.open();
-
-        // A newly created asynchronous server socket channel is open but not yet bound,
-        // so we must bind it to a local address and optionally choose a port:
-        serverChannel.bind(new InetSocketAddress("127.0.0.1", 4555));
-
-        // Next, still inside the constructor, we create a while loop within which we accept any incoming connection from a client.
-        // This while loop is used strictly to prevent the server from exiting before establishing a connection with a client.
-        // To prevent the loop from running endlessly, we call System.in.read() at its end to block execution until an
-        // incoming connection is read from the standard input stream:
-        while (true) {
-            serverChannel.accept(null, new CompletionHandler<AsynchronousSocketChannel, Object>() {
-
-                @Override
-                public void completed(AsynchronousSocketChannel result, Object attachment) {
-                    if (serverChannel.isOpen()) {
-                        serverChannel.accept(null, this);
-                    }
-
-                    AsynchronousSocketChannel clientChannel = result;
-                    if ((clientChannel != null) && (clientChannel.isOpen())) {
-                        ReadWriteHandler handler = new ReadWriteHandler(clientChannel);
-                        ByteBuffer buffer = ByteBuffer.allocate(32);
-
-                        Map<String, Object> readInfo = new HashMap<>();
-                        readInfo.put("action", "read");
-                        readInfo.put("buffer", buffer);
-
-                        clientChannel.read(buffer, readInfo, handler);
-                    }
-                }
-
-                @Override
-                public void failed(Throwable exc, Object attachment) {
-                    System.err.println("Accepting clientChannel failed");
-                }
-            });
-            System.in.read();
+        FrameCodec codec = FrameCodec.fromSystemProperty();
+        ServerMetrics.SHARED.start();
+        if (Journal.SHARED != null) {
+            System.out.println("Journaling to " + Journal.SHARED);
         }
 
-    }
-}
-
-class ReadWriteHandler implements CompletionHandler<Integer, Map<String, Object>> {
-    private AsynchronousSocketChannel clientChannel;
-
-    public ReadWriteHandler(AsynchronousSocketChannel clientChannel) {
-        this.clientChannel = clientChannel;
-    }
-
-    @Override
-    public void completed(Integer result, Map<String, Object> attachment) {
-        Map<String, Object> actionInfo = attachment;
-        String action = (String) actionInfo.get("action");
-
-        if ("read".equals(action)) {
-            ByteBuffer buffer = (ByteBuffer) actionInfo.get("buffer");
-            buffer.flip();
-            actionInfo.put("action", "write");
-
-            clientChannel.write(buffer, actionInfo, this);
-            buffer.clear();
-
-            ByteBuffer buffer2 = ByteBuffer.allocate(128);
-            buffer2.put(0, ", Server: ServerWithFurure".getBytes());
-            clientChannel.write(buffer2, actionInfo, this);
-
-        } else if ("write".equals(action)) {
-            ByteBuffer buffer = ByteBuffer.allocate(32);
-
-            actionInfo.put("action", "read");
-            actionInfo.put("buffer", buffer);
-
-            clientChannel.read(buffer, actionInfo, this); // <----- error here
+        // Each shard opens its own AsynchronousServerSocketChannel in its own channel group and binds it to the same
+        // port, with SO_REUSEPORT, then starts an accept chain on it that re-arms itself on every completion:
+        ServerShards shards = ServerShards.open(new InetSocketAddress("127.0.0.1", 4555), codec);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> shutdown(shards), "ServerWithCompletionHandler-shutdown"));
+
+        // Accepting runs on the shards' threads, this one only has to keep the server from exiting.
+        // Press Enter to see how the connections are spread over the shards:
+        int c;
+        while ((c = System.in.read()) >= 0) {
+            if (c == '\n') {
+                System.out.println(shards.balanceReport());
+            }
         }
+        shards.awaitTermination();
     }
 
-    @Override
-    public void failed(Throwable exc, Map<String, Object> attachment) {
-        System.err.println("Reading clientChannel failed");
-        exc.printStackTrace();
+    /**
+     * Closes every shard, gives their threads a moment to finish, makes what the journal holds durable, then reports
+     * the pooled buffers still held.
+     */
+    private static void shutdown(ServerShards shards) {
+        shards.close();
+        try {
+            if (!shards.awaitTermination(5, TimeUnit.SECONDS)) {
+                System.err.println("Some shards did not stop within 5 seconds");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (Journal.SHARED != null) {
+            Journal.SHARED.close();
+        }
+        BufferPool.SHARED.reportLeaks();
     }
 }
 
@@ -1,11 +1,21 @@
 package async;
 
 import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @see <a href="https://www.baeldung.com/java-nio2-async-socket-channel">A Guide to NIO2 Asynchronous Socket Channel</a>
@@ -13,60 +23,288 @@ import java.util.concurrent.Future;
  * @see <a href="https://www.baeldung.com/java-nio2-async-socket-channel#the-server-with-future">The Server With Future</a>
  * */
 public class ServerWithFuture {
+    // How often the loop, waiting at the connection cap, checks whether the server was shut down.
+    static final long PERMIT_POLL_MILLIS = 100;
+
+    private final FrameCodec codec = FrameCodec.fromSystemProperty();
+    private final Journal journal = Journal.SHARED;
+
+    // Each connection gets its own thread running the blocking-style runServer, at most ServerLimits.MAX_CONNECTIONS at a time.
+    // Blocking writes are this server's backpressure: a slow reader stalls only its own thread.
+    private volatile ExecutorService connectionThreads;
+    private final Semaphore connectionPermits = new Semaphore(ServerLimits.MAX_CONNECTIONS);
+    private volatile AsynchronousServerSocketChannel server;
+
     public static void main(String[] args) throws Exception {
-        new ServerWithFuture().run();
+        ServerWithFuture server = new ServerWithFuture();
+        Runtime.getRuntime().addShutdownHook(new Thread(server::shutdown, "ServerWithFuture-shutdown"));
+        server.run();
     }
 
     void run() throws Exception {
         System.out.println("Hello, NIO2 with Future!");
+        ServerMetrics.SHARED.start();
+        if (journal != null) {
+            System.out.println("Journaling to " + journal);
+        }
+        bind(new InetSocketAddress("127.0.0.1", 4555));
+        acceptLoop();
+    }
+
+    /** Opens the server channel and binds it; returns the address actually bound, which tells the port picked for 0. */
+    InetSocketAddress bind(SocketAddress address) throws IOException {
+        connectionThreads = newConnectionExecutor();
 
         // An instance of AsynchronousServerSocketChannel is created by calling the static open API on its class:
-        AsynchronousServerSocketChannel server = AsynchronousServerSocketChannel.open();
+        server = AsynchronousServerSocketChannel.open();
 
         // A newly created asynchronous server socket channel is open but not yet bound,
         // so we must bind it to a local address and optionally choose a port:
-        server.bind(new InetSocketAddress("127.0.0.1", 4555));
+        server.bind(address);
+        return (InetSocketAddress) server.getLocalAddress();
+    }
 
-        // Once bound, the accept API is used to initiate the accepting of connections to the channel's socket:
-        // As it is with asynchronous channel operations, the above call returns right away and execution continues.
-        Future<AsynchronousSocketChannel> acceptFuture = server.accept();
+    /** Accepts connections until {@link #shutdown()}, handing each to its own thread. */
+    void acceptLoop() throws IOException, InterruptedException {
+        long backoffMillis = 0;
+        while (server.isOpen()) {
+            // Past the cap we simply stop accepting; the kernel backlog holds new clients until a connection finishes.
+            // The wait is in slices, so a shutdown meanwhile ends the loop instead of leaving it parked here.
+            if (!connectionPermits.tryAcquire(PERMIT_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                continue;
+            }
+
+            // Once bound, the accept API is used to initiate the accepting of connections to the channel's socket:
+            // As it is with asynchronous channel operations, the above call returns right away and execution continues.
+            Future<AsynchronousSocketChannel> acceptFuture = server.accept();
 
-        //Next, we can use the get API to query for a response from the Future object:
-        AsynchronousSocketChannel worker = acceptFuture.get();
+            //Next, we can use the get API to query for a response from the Future object:
+            AsynchronousSocketChannel worker;
+            try {
+                worker = acceptFuture.get();
+            } catch (ExecutionException e) {
+                connectionPermits.release();
+                if (!server.isOpen()) {
+                    break;
+                }
+                // A persistent error such as EMFILE fails every accept at once: without a pause this loop would spin
+                // and flood stderr. A closing connection frees a descriptor meanwhile.
+                backoffMillis = ServerLimits.acceptBackoff(backoffMillis);
+                System.err.println("Accepting clientChannel failed, retrying in " + backoffMillis + " ms: " + e.getCause());
+                Thread.sleep(backoffMillis);
+                continue;
+            }
+            backoffMillis = 0;
 
-        runServer(worker);
+            ServerMetrics.SHARED.connectionAccepted();
+            long acceptedNanos = System.nanoTime();
+            try {
+                connectionThreads.execute(() -> serve(worker, acceptedNanos));
+            } catch (RejectedExecutionException e) {
+                // Shutting down.
+                connectionPermits.release();
+                ServerMetrics.SHARED.connectionClosed();
+                worker.close();
+            }
+        }
+    }
+
+    /**
+     * Stops accepting, interrupts every connection thread (which closes its channel) and waits briefly for them, makes
+     * what the journal holds durable, then reports the pooled buffers still held.
+     */
+    void shutdown() {
+        AsynchronousServerSocketChannel server = this.server;
+        if (server == null) {
+            return;
+        }
+        try {
+            server.close();
+            connectionThreads.shutdownNow();
+            if (!connectionThreads.awaitTermination(5, TimeUnit.SECONDS)) {
+                System.err.println("Some connections did not stop within 5 seconds");
+            }
+            if (journal != null) {
+                journal.close();
+            }
+            BufferPool.SHARED.reportLeaks();
+        } catch (IOException e) {
+            System.err.println("Closing server failed");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void serve(AsynchronousSocketChannel worker, long acceptedNanos) {
+        try {
+            runServer(worker, acceptedNanos);
+        } catch (InterruptedException e) {
+            // Shutdown; try-with-resources in runServer already closed the channel.
+        } catch (IOException | ExecutionException e) {
+            System.err.println("Serving clientChannel failed: " + e);
+        } finally {
+            connectionPermits.release();
+            ServerMetrics.SHARED.connectionClosed();
+        }
     }
 
     public void runServer(AsynchronousSocketChannel clientChannel) throws IOException, ExecutionException, InterruptedException {
+        runServer(clientChannel, System.nanoTime());
+    }
+
+    /** Serves one connection; {@code acceptedNanos} is when it was accepted, to measure the time to its first byte. */
+    void runServer(AsynchronousSocketChannel clientChannel, long acceptedNanos)
+            throws IOException, ExecutionException, InterruptedException {
         if ((clientChannel != null) && (clientChannel.isOpen())) {
+            // The decoder's buffer and the reply buffers come from the shared pool, not from a new allocation per message.
+            FrameDecoder decoder = new FrameDecoder(codec);
+            OutboundQueue replies = new OutboundQueue();
+            JournalingEcho journaling = journal == null ? null : new JournalingEcho();
+            // The wheel closes the channel when a read or write waits too long, which fails the pending Future.
+            ChannelTimeout timeout = new ChannelTimeout(clientChannel);
+            TimeoutWheel.SHARED.register(timeout);
             try (clientChannel) {
                 while (true) {
-                    ByteBuffer buffer1 = ByteBuffer.allocate(32);
-                    Future<Integer> readResult = clientChannel.read(buffer1);
+                    timeout.renewRead(decoder.hasPartialFrame());
+                    Future<Integer> readResult = clientChannel.read(decoder.buffer());
 
                     // perform other computations
 
-                    readResult.get();
+                    int bytesRead = readResult.get();
+                    timeout.clearRead();
+                    if (bytesRead < 0) {
+                        break;
+                    }
+                    ServerMetrics.SHARED.read(bytesRead);
+                    if (acceptedNanos != 0 && bytesRead > 0) {
+                        ServerMetrics.SHARED.firstByte(acceptedNanos);
+                        acceptedNanos = 0;
+                    }
+
+                    // One read may hold several requests, or only part of one.
+                    // What the CompletionHandler server measures per completion; here it includes the blocking writes.
+                    long start = System.nanoTime();
+                    if (journaling == null) {
+                        decoder.decode(this::queueEcho, replies);
+                    } else {
+                        decoder.decode(journaling, replies);
+                        // Group commit: this connection's frames go to disk with those of every other connection.
+                        journaling.awaitDurable();
+                    }
+                    timeout.renewWrite();
+                    writeAll(clientChannel, replies);
+                    timeout.clearWrite();
+                    ServerMetrics.SHARED.handlerTime(System.nanoTime() - start);
+                }
+            } catch (ExecutionException e) {
+                // Timed out: the wheel already counted it.
+                if (!timeout.hasExpired()) {
+                    throw e;
+                }
+            } finally {
+                timeout.cancel();
+                decoder.release();
+                replies.releaseAll();
+            }
+        }
+    }
+
+    private void queueEcho(ByteBuffer[] chunks, int count, int length, OutboundQueue replies) {
+        replies.add(Echo.reply(codec, chunks, count, length));
+    }
 
-                    buffer1.flip();
-                    Future<Integer> writeResult1 = clientChannel.write(buffer1);
+    /** Journals every echoed frame as it is queued; the replies may only be written once the last one is durable. */
+    private final class JournalingEcho implements FrameDecoder.FrameHandler<OutboundQueue> {
+        private long lastSequence = -1;
+        // A frame too long for the journal; it could never be made durable, so the connection closes instead.
+        private int oversizedLength = -1;
 
-                    // perform other computations
+        @Override
+        public void onFrame(ByteBuffer[] chunks, int count, int length, OutboundQueue replies) {
+            if (length > journal.maxEntryLength()) {
+                oversizedLength = length;
+                return;
+            }
+            ByteBuffer reply = Echo.reply(codec, chunks, count, length);
+            lastSequence = journal.append(reply, codec.headerLength(), length, null);
+            replies.add(reply);
+        }
 
-                    writeResult1.get();
-                    buffer1.clear();
+        void awaitDurable() throws IOException {
+            if (oversizedLength >= 0) {
+                throw new IOException("A frame of " + oversizedLength + " bytes does not fit in a journal segment");
+            }
+            if (lastSequence >= 0) {
+                journal.awaitDurable(lastSequence);
+            }
+        }
+    }
 
-                    ByteBuffer buffer2 = ByteBuffer.allocate(128);
-                    buffer2.put(0, ", Server: ServerWithFurure".getBytes());
-                    Future<Integer> writeResult2 = clientChannel.write(buffer2);
+    private static void writeAll(AsynchronousSocketChannel clientChannel, OutboundQueue replies) throws ExecutionException, InterruptedException {
+        ByteBuffer[] buffers = replies.array();
+        long written = 0;
+        for (int i = replies.offset(); i < replies.offset() + replies.length(); i++) {
+            while (buffers[i].hasRemaining()) {
+                Future<Integer> writeResult = clientChannel.write(buffers[i]);
 
-                    // perform other computations
+                // perform other computations
 
-                    writeResult2.get();
-                    buffer2.clear();
-                }
+                int bytes = writeResult.get();
+                ServerMetrics.SHARED.written(bytes);
+                written += bytes;
+            }
+        }
+        replies.written(written);
+    }
+
+    /** Closes a connection's channel once the {@link TimeoutWheel} finds it waited too long. */
+    private static final class ChannelTimeout extends TimeoutWheel.Timeout {
+        private final AsynchronousSocketChannel channel;
+        private volatile boolean expired;
+
+        ChannelTimeout(AsynchronousSocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        protected void expired(TimeoutWheel.Kind kind) {
+            expired = true;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Closing timed out clientChannel failed");
+            }
+        }
+
+        boolean hasExpired() {
+            return expired;
+        }
+    }
+
+    /**
+     * A virtual thread per connection when the JDK has them ({@code Executors.newVirtualThreadPerTaskExecutor}, JDK 21,
+     * looked up reflectively since this project compiles for 17), otherwise a cached pool of platform threads.
+     * {@code -Dnio2lab.virtualThreads=false} forces platform threads, to compare the two.
+     */
+    static ExecutorService newConnectionExecutor() {
+        if (Boolean.parseBoolean(System.getProperty("nio2lab.virtualThreads", "true"))) {
+            try {
+                MethodHandle factory = MethodHandles.publicLookup().findStatic(Executors.class,
+                        "newVirtualThreadPerTaskExecutor", MethodType.methodType(ExecutorService.class));
+                ExecutorService executor = (ExecutorService) factory.invokeExact();
+                System.out.println("Serving each connection on a virtual thread");
+                return executor;
+            } catch (Throwable e) {
+                // Older JDK, or JDK 19/20 without --enable-preview.
             }
         }
+        System.out.println("Serving each connection on a platform thread");
+        AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "ServerWithFuture-connection-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 }
 
@@ -0,0 +1,134 @@
+package async;
+
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One shard: its channel group, its server channel and the accept chain on it, re-armed on every completion unless the
+ * {@link ServerLimits} say the server is full, in which case the shard parks until they let it go on. A failed accept
+ * is retried after a pause, so a persistent error such as EMFILE does not spin the shard's threads.
+ */
+final class Shard implements CompletionHandler<AsynchronousSocketChannel, Void> {
+    // One daemon thread for every shard's accept retries.
+    private static final ScheduledThreadPoolExecutor RETRIES = new ScheduledThreadPoolExecutor(1, task -> {
+        Thread thread = new Thread(task, "Shard-accept-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        // Loads and starts everything a retry needs now: out of descriptors, not even a class file can be opened.
+        RETRIES.schedule(() -> { }, 0, TimeUnit.MILLISECONDS);
+    }
+
+    final int id;
+    final AsynchronousChannelGroup group;
+    final AsynchronousServerSocketChannel serverChannel;
+    final ServerLimits limits;
+    private final Protocol.Type protocol;
+    private final FrameCodec codec;
+
+    private final LongAdder accepted = new LongAdder();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicBoolean parked = new AtomicBoolean();
+    // Only the accept chain touches it, and the chain has one accept in flight at a time.
+    private long acceptBackoffMillis;
+    private final Runnable retryAccept = this::retryAccept;
+
+    Shard(int id, AsynchronousChannelGroup group, AsynchronousServerSocketChannel serverChannel, Protocol.Type protocol,
+          FrameCodec codec, ServerLimits limits) {
+        this.id = id;
+        this.group = group;
+        this.serverChannel = serverChannel;
+        this.protocol = protocol;
+        this.codec = codec;
+        this.limits = limits;
+    }
+
+    void accept() {
+        serverChannel.accept(null, this);
+    }
+
+    @Override
+    public void completed(AsynchronousSocketChannel clientChannel, Void attachment) {
+        if ((clientChannel != null) && (clientChannel.isOpen())) {
+            accepted.increment();
+            active.incrementAndGet();
+            limits.connectionOpened();
+            ServerMetrics.SHARED.connectionAccepted();
+            acceptBackoffMillis = 0;
+            new ConnectionContext(clientChannel, protocol.open(codec), this).read();
+        }
+
+        if (serverChannel.isOpen()) {
+            acceptOrPark();
+        }
+    }
+
+    @Override
+    public void failed(Throwable exc, Void attachment) {
+        if (!serverChannel.isOpen()) {
+            return;
+        }
+        // E.g. out of file descriptors: every accept fails at once, so try again after a pause rather than right away.
+        // A closing connection frees a descriptor meanwhile. The pause must not block this group's threads.
+        acceptBackoffMillis = ServerLimits.acceptBackoff(acceptBackoffMillis);
+        System.err.println("Accepting clientChannel failed on shard " + id + ", retrying in " + acceptBackoffMillis
+                + " ms: " + exc);
+        RETRIES.schedule(retryAccept, acceptBackoffMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void retryAccept() {
+        if (serverChannel.isOpen()) {
+            acceptOrPark();
+        }
+    }
+
+    /** Called once by every connection of this shard when it closes. */
+    void connectionClosed() {
+        active.decrementAndGet();
+        limits.connectionClosed();
+    }
+
+    /** Resumes a parked accept chain; a no-op unless this shard is parked. */
+    void unpark() {
+        if (parked.compareAndSet(true, false)) {
+            limits.shardUnparked();
+            if (serverChannel.isOpen()) {
+                accept();
+            }
+        }
+    }
+
+    boolean isParked() {
+        return parked.get();
+    }
+
+    private void acceptOrPark() {
+        if (limits.canAccept()) {
+            accept();
+            return;
+        }
+        parked.set(true);
+        limits.shardParked();
+        // A connection may have closed between the check and parking, and found nobody to wake: look again.
+        if (limits.canAccept()) {
+            unpark();
+        }
+    }
+
+    int activeConnections() {
+        return active.get();
+    }
+
+    long acceptedConnections() {
+        return accepted.sum();
+    }
+}
@@ -0,0 +1,233 @@
+package async;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One hashed timing wheel driving the idle, read and write timeouts of every connection of both servers.
+ * <p>
+ * The JDK's timed {@code read(..., timeout, unit, ...)} schedules a timer task per operation; here a connection embeds
+ * a single {@link Timeout} node, registered once, and renewing it is a volatile write of the new deadline: no
+ * allocation, no lock, no reordering of the wheel. The wheel's thread ticks every {@link #TICK_MILLIS} and looks at
+ * the nodes in the current slot only. A node whose deadline moved on is re-hashed into the slot of its new deadline
+ * then; a node past its deadline is taken off the wheel and told to close its connection.
+ * <p>
+ * Since renewing does not move a node, a node is never parked further away than the shortest timeout: a deadline
+ * renewed to something sooner, say from idle to write, is then still seen in time. The kinds, each configured in
+ * milliseconds and disabled by 0:
+ * <ul>
+ *     <li>{@link Kind#IDLE} ({@code nio2lab.timeout.idleMillis}, default 120000): waiting for a new request;</li>
+ *     <li>{@link Kind#READ} ({@code nio2lab.timeout.readMillis}, default 30000): waiting for the rest of a frame;</li>
+ *     <li>{@link Kind#WRITE} ({@code nio2lab.timeout.writeMillis}, default 30000): a write not completing.</li>
+ * </ul>
+ * Deadlines are measured on the wheel's coarse clock, so a timeout fires up to one tick late or early.
+ */
+final class TimeoutWheel {
+    enum Kind {
+        IDLE,
+        READ,
+        WRITE
+    }
+
+    static final long TICK_MILLIS = Long.getLong("nio2lab.timeout.tickMillis", 100);
+    static final int WHEEL_SIZE = 512;
+
+    static final TimeoutWheel SHARED = new TimeoutWheel(TICK_MILLIS, WHEEL_SIZE,
+            Long.getLong("nio2lab.timeout.idleMillis", 120_000),
+            Long.getLong("nio2lab.timeout.readMillis", 30_000),
+            Long.getLong("nio2lab.timeout.writeMillis", 30_000));
+
+    /**
+     * The wheel's node of one connection. The connection renews it from its I/O threads; the list link belongs to the
+     * wheel's thread.
+     */
+    abstract static class Timeout {
+        private volatile TimeoutWheel wheel;
+        // 0 when not set. Read and write deadlines run side by side: a connection can wait for both at once.
+        private volatile long readDeadline;
+        private volatile Kind readKind = Kind.IDLE;
+        private volatile long writeDeadline;
+        private volatile boolean cancelled;
+        private Timeout next;
+
+        /** Called once, on the wheel's thread, when a deadline passed. Must close the connection. */
+        protected abstract void expired(Kind kind);
+
+        /** A read is armed: the idle timeout runs, or the read timeout if part of a frame is already buffered. */
+        final void renewRead(boolean partialFrame) {
+            TimeoutWheel wheel = this.wheel;
+            if (wheel != null) {
+                Kind kind = partialFrame ? Kind.READ : Kind.IDLE;
+                readKind = kind;
+                readDeadline = wheel.deadline(kind);
+            }
+        }
+
+        /** Reading stopped, e.g. paused by backpressure; the write timeout still runs. */
+        final void clearRead() {
+            readDeadline = 0;
+        }
+
+        final void renewWrite() {
+            TimeoutWheel wheel = this.wheel;
+            if (wheel != null) {
+                writeDeadline = wheel.deadline(Kind.WRITE);
+            }
+        }
+
+        final void clearWrite() {
+            writeDeadline = 0;
+        }
+
+        /** The connection closed; the wheel drops the node the next time it comes across it. */
+        final void cancel() {
+            cancelled = true;
+            readDeadline = 0;
+            writeDeadline = 0;
+        }
+
+        private long deadline() {
+            long read = readDeadline;
+            long write = writeDeadline;
+            if (read == 0 || (write != 0 && write < read)) {
+                return write;
+            }
+            return read;
+        }
+    }
+
+    private final long tickNanos;
+    private final int mask;
+    private final long[] timeoutNanos = new long[Kind.values().length];
+    // How far ahead a node may be parked, see the class comment.
+    private final long horizonNanos;
+    private final boolean enabled;
+
+    // Owned by the wheel's thread: each slot is a singly linked list of nodes.
+    private final Timeout[] slots;
+    private final Queue<Timeout> registrations = new ConcurrentLinkedQueue<>();
+    private final LongAdder[] reaped = new LongAdder[Kind.values().length];
+
+    private final long start = System.nanoTime();
+    // The coarse clock, advanced once per tick.
+    private volatile long now = start;
+    private boolean started;
+
+    TimeoutWheel(long tickMillis, int wheelSize, long idleMillis, long readMillis, long writeMillis) {
+        if (tickMillis < 1 || Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException("The tick must be positive and the wheel size a power of two");
+        }
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        mask = wheelSize - 1;
+        slots = new Timeout[wheelSize];
+        timeoutNanos[Kind.IDLE.ordinal()] = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+        timeoutNanos[Kind.READ.ordinal()] = TimeUnit.MILLISECONDS.toNanos(readMillis);
+        timeoutNanos[Kind.WRITE.ordinal()] = TimeUnit.MILLISECONDS.toNanos(writeMillis);
+
+        long shortest = Long.MAX_VALUE;
+        for (long timeout : timeoutNanos) {
+            if (timeout > 0) {
+                shortest = Math.min(shortest, timeout);
+            }
+        }
+        enabled = shortest != Long.MAX_VALUE;
+        horizonNanos = Math.min(shortest, mask * tickNanos);
+        for (int i = 0; i < reaped.length; i++) {
+            reaped[i] = new LongAdder();
+        }
+    }
+
+    /** Puts a new connection's node on the wheel, starting the wheel's thread with the first one. No-op if all timeouts are off. */
+    void register(Timeout timeout) {
+        if (!enabled) {
+            return;
+        }
+        synchronized (this) {
+            if (!started) {
+                started = true;
+                Thread ticker = new Thread(this::run, "TimeoutWheel");
+                ticker.setDaemon(true);
+                ticker.start();
+            }
+        }
+        timeout.wheel = this;
+        registrations.add(timeout);
+    }
+
+    /** Connections closed by the wheel for {@code kind}. */
+    long reaped(Kind kind) {
+        return reaped[kind.ordinal()].sum();
+    }
+
+    private long deadline(Kind kind) {
+        long timeout = timeoutNanos[kind.ordinal()];
+        return timeout == 0 ? 0 : now + timeout;
+    }
+
+    private void run() {
+        long tick = 0;
+        while (true) {
+            long wait;
+            while ((wait = start + (tick + 1) * tickNanos - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            long currentNanos = System.nanoTime();
+            now = currentNanos;
+            long currentTick = (currentNanos - start) / tickNanos;
+
+            Timeout registered;
+            while ((registered = registrations.poll()) != null) {
+                schedule(registered, currentNanos, currentTick);
+            }
+            // Normally one tick; after a stall, every slot the wheel fell behind on.
+            while (tick < currentTick) {
+                tick++;
+                expire((int) (tick & mask), currentNanos, currentTick);
+            }
+        }
+    }
+
+    private void expire(int slot, long currentNanos, long currentTick) {
+        Timeout timeout = slots[slot];
+        slots[slot] = null;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            timeout.next = null;
+            if (!timeout.cancelled) {
+                long deadline = timeout.deadline();
+                if (deadline != 0 && deadline - currentNanos <= 0) {
+                    expired(timeout, deadline);
+                } else {
+                    schedule(timeout, currentNanos, currentTick);
+                }
+            }
+            timeout = next;
+        }
+    }
+
+    private void expired(Timeout timeout, long deadline) {
+        Kind kind = deadline == timeout.writeDeadline ? Kind.WRITE : timeout.readKind;
+        timeout.cancelled = true;
+        reaped[kind.ordinal()].increment();
+        try {
+            timeout.expired(kind);
+        } catch (RuntimeException e) {
+            System.err.println("Closing a timed out connection failed: " + e);
+        }
+    }
+
+    private void schedule(Timeout timeout, long currentNanos, long currentTick) {
+        long visit = currentNanos + horizonNanos;
+        long deadline = timeout.deadline();
+        if (deadline != 0 && deadline - visit < 0) {
+            visit = deadline;
+        }
+        long visitTick = Math.max(currentTick + 1, (visit - start) / tickNanos);
+        int slot = (int) (visitTick & mask);
+        timeout.next = slots[slot];
+        slots[slot] = timeout;
+    }
+}
@@ -0,0 +1,39 @@
+package async;
+
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.CompletionHandler;
+
+/**
+ * Handles a completed gathering write: drops what was fully written from the {@link OutboundQueue} and writes again
+ * if anything is left, including replies queued while this write was in flight. Hands the connection back to the read
+ * path when the queue drained below the low watermark.
+ * Stateless, so one instance serves every connection.
+ */
+final class WriteHandler implements CompletionHandler<Long, ConnectionContext> {
+    static final WriteHandler INSTANCE = new WriteHandler();
+
+    @Override
+    public void completed(Long result, ConnectionContext context) {
+        long start = System.nanoTime();
+        try {
+            ServerMetrics.SHARED.written(result);
+            boolean resumeReading = context.writeCompleted(result);
+            context.flush();
+            if (resumeReading) {
+                ReadHandler.INSTANCE.resume(context);
+            }
+        } finally {
+            ServerMetrics.SHARED.handlerTime(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void failed(Throwable exc, ConnectionContext context) {
+        // An AsynchronousCloseException means we closed the channel ourselves, e.g. on a timeout.
+        if (!(exc instanceof AsynchronousCloseException)) {
+            System.err.println("Writing clientChannel failed");
+            exc.printStackTrace();
+        }
+        context.writeFailed();
+    }
+}
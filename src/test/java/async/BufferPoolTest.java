@@ -0,0 +1,86 @@
+package async;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import org.junit.jupiter.api.Test;
+
+/** A private {@link BufferPool}, so its counters see this test's buffers only. */
+class BufferPoolTest {
+    @Test
+    void capacitiesMapToPowerOfTwoClasses() {
+        assertEquals(0, BufferPool.sizeClass(1));
+        assertEquals(0, BufferPool.sizeClass(32));
+        assertEquals(1, BufferPool.sizeClass(33));
+        assertEquals(1, BufferPool.sizeClass(64));
+        assertEquals(BufferPool.MAX_SHIFT - BufferPool.MIN_SHIFT, BufferPool.sizeClass(1 << BufferPool.MAX_SHIFT));
+        assertEquals(-1, BufferPool.sizeClass((1 << BufferPool.MAX_SHIFT) + 1));
+    }
+
+    @Test
+    void acquiredBuffersAreDirectClearedAndRoundedUp() {
+        BufferPool pool = new BufferPool(4, false);
+        ByteBuffer buffer = pool.acquire(100);
+        assertTrue(buffer.isDirect());
+        assertEquals(128, buffer.capacity());
+        assertEquals(0, buffer.position());
+        assertEquals(100, buffer.limit());
+
+        ByteBuffer large = pool.acquire((1 << BufferPool.MAX_SHIFT) + 1);
+        assertEquals((1 << BufferPool.MAX_SHIFT) + 1, large.capacity());
+    }
+
+    @Test
+    void releasedBuffersAreReusedAndCounted() {
+        BufferPool pool = new BufferPool(4, false);
+        ByteBuffer first = pool.acquire(1000);
+        assertEquals(1, pool.misses());
+        assertEquals(1, pool.outstanding());
+
+        first.position(10);
+        pool.release(first);
+        assertEquals(0, pool.outstanding());
+        assertEquals(1, pool.releases());
+
+        ByteBuffer second = pool.acquire(900);
+        assertSame(first, second);
+        assertEquals(1, pool.hits());
+        assertEquals(0, second.position());
+        assertEquals(900, second.limit());
+        pool.release(second);
+    }
+
+    @Test
+    void fullClassesAndForeignBuffersAreDropped() {
+        BufferPool pool = new BufferPool(2, false);
+        ByteBuffer[] buffers = new ByteBuffer[3];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = pool.acquire(64);
+        }
+        for (ByteBuffer buffer : buffers) {
+            pool.release(buffer);
+        }
+        assertEquals(1, pool.drops());
+
+        pool.release(pool.acquire((1 << BufferPool.MAX_SHIFT) + 1));
+        assertEquals(2, pool.drops());
+        assertEquals(0, pool.outstanding());
+    }
+
+    @Test
+    void leakDetectionCatchesDoubleReleasesAndReportsHeldBuffers() {
+        BufferPool pool = new BufferPool(4, true);
+        ByteBuffer held = pool.acquire(64);
+        ByteBuffer released = pool.acquire(64);
+        pool.release(released);
+        assertThrows(IllegalStateException.class, () -> pool.release(released));
+        assertThrows(IllegalStateException.class, () -> pool.release(ByteBuffer.allocateDirect(64)));
+
+        assertEquals(1, pool.reportLeaks());
+        pool.release(held);
+        assertEquals(0, pool.reportLeaks());
+    }
+}
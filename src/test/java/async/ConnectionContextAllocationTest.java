@@ -0,0 +1,96 @@
+package async;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The allocation profile of the CompletionHandler echo path at a steady rate: what the server's threads allocate per
+ * round trip, measured with {@link com.sun.management.ThreadMXBean#getThreadAllocatedBytes(long)} after a warm-up.
+ * The client is a blocking {@link SocketChannel} on direct buffers, so it does not show up on the server's threads.
+ */
+class ConnectionContextAllocationTest {
+    private static final int PAYLOAD_LENGTH = 32;
+    private static final int WARMUP_ROUND_TRIPS = 50_000;
+    private static final int MEASURED_ROUND_TRIPS = 50_000;
+    // The JDK's own completion path allocates a little (the boxed Integer/Long results, now and then an internal
+    // task); ConnectionContext, the handlers and the pooled buffers must add nothing per round trip.
+    private static final double MAX_BYTES_PER_ROUND_TRIP = 64;
+
+    private ServerShards shards;
+    private SocketChannel client;
+
+    @BeforeEach
+    void start() throws IOException {
+        shards = ServerShards.open(new InetSocketAddress("127.0.0.1", 0), LengthPrefixedCodec.INSTANCE,
+                new ServerLimits(), 1, 1);
+        client = SocketChannel.open(shards.localAddress());
+    }
+
+    @AfterEach
+    void stop() throws IOException {
+        client.close();
+        shards.close();
+    }
+
+    @Test
+    void echoRoundTripsAllocateNearlyNothingOnTheServer() throws IOException {
+        FrameCodec codec = LengthPrefixedCodec.INSTANCE;
+        ByteBuffer request = ByteBuffer.allocateDirect(codec.encodedLength(PAYLOAD_LENGTH));
+        codec.encode(new byte[PAYLOAD_LENGTH], request);
+        request.flip();
+        ByteBuffer response = ByteBuffer.allocateDirect(
+                codec.encodedLength(PAYLOAD_LENGTH) + codec.encodedLength(Echo.SUFFIX.length));
+
+        roundTrips(request, response, WARMUP_ROUND_TRIPS);
+        long[] serverThreads = serverThreadIds();
+        long before = allocatedBytes(serverThreads);
+        roundTrips(request, response, MEASURED_ROUND_TRIPS);
+        long allocated = allocatedBytes(serverThreads) - before;
+
+        double perRoundTrip = (double) allocated / MEASURED_ROUND_TRIPS;
+        assertTrue(perRoundTrip <= MAX_BYTES_PER_ROUND_TRIP,
+                "Expected at most " + MAX_BYTES_PER_ROUND_TRIP + " bytes per round trip, got " + perRoundTrip);
+        response.flip();
+        assertEquals(PAYLOAD_LENGTH, response.getInt(0));
+    }
+
+    private void roundTrips(ByteBuffer request, ByteBuffer response, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            request.rewind();
+            while (request.hasRemaining()) {
+                client.write(request);
+            }
+            response.clear();
+            while (response.hasRemaining()) {
+                if (client.read(response) < 0) {
+                    throw new IOException("The server closed the connection");
+                }
+            }
+        }
+    }
+
+    private static long[] serverThreadIds() {
+        return Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> thread.getName().startsWith("shard-"))
+                .mapToLong(Thread::getId)
+                .toArray();
+    }
+
+    private static long allocatedBytes(long[] threadIds) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (long allocated : threads.getThreadAllocatedBytes(threadIds)) {
+            total += Math.max(0, allocated);
+        }
+        return total;
+    }
+}
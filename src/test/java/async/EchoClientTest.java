@@ -0,0 +1,197 @@
+package async;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.AsynchronousCloseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+/**
+ * An {@link EchoClient} against the real echo server, and against a scripted one that answers out of order, hangs up
+ * or never answers.
+ */
+class EchoClientTest {
+    private static final String SUFFIX = new String(Echo.SUFFIX);
+
+    @Test
+    void concurrentRequestsShareTheConnectionsAndEachGetsItsOwnEcho() throws Exception {
+        ServerShards server = ServerShards.open(new InetSocketAddress("127.0.0.1", 0), LengthPrefixedCodec.INSTANCE,
+                new ServerLimits(), 1, 1);
+        try (EchoClient client = new EchoClient(LengthPrefixedCodec.INSTANCE, 2, 2)) {
+            InetSocketAddress address = server.localAddress();
+            // Threads sending at once queue behind each other's writes and go out together in gathering writes.
+            List<Thread> senders = new ArrayList<>();
+            List<List<CompletableFuture<String>>> responses = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                int sender = t;
+                List<CompletableFuture<String>> sent = new ArrayList<>();
+                responses.add(sent);
+                senders.add(new Thread(() -> {
+                    for (int i = 0; i < 500; i++) {
+                        sent.add(client.sendMessage(address, "sender " + sender + " message " + i));
+                    }
+                }));
+            }
+            senders.forEach(Thread::start);
+            for (Thread sender : senders) {
+                sender.join();
+            }
+            for (int t = 0; t < senders.size(); t++) {
+                for (int i = 0; i < 500; i++) {
+                    assertEquals("sender " + t + " message " + i + SUFFIX, responses.get(t).get(i).get(5, TimeUnit.SECONDS));
+                }
+            }
+            assertEquals(2, server.limits().connections());
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    void responsesArrivingInReverseOrderCompleteTheirOwnRequests() throws Exception {
+        try (ScriptedServer server = new ScriptedServer((connection, in, out) -> {
+                 List<byte[]> requests = new ArrayList<>();
+                 for (int i = 0; i < 10; i++) {
+                     requests.add(readFrame(in));
+                 }
+                 for (int i = requests.size() - 1; i >= 0; i--) {
+                     echo(requests.get(i), out);
+                 }
+             });
+             EchoClient client = new EchoClient(LengthPrefixedCodec.INSTANCE, 1, 1)) {
+            List<CompletableFuture<String>> responses = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                responses.add(client.sendMessage(server.address(), "message " + i));
+            }
+            for (int i = 0; i < 10; i++) {
+                assertEquals("message " + i + SUFFIX, responses.get(i).get(5, TimeUnit.SECONDS));
+            }
+            assertEquals(1, server.connections.get());
+        }
+    }
+
+    @Test
+    void requestsInFlightFailWhenTheServerHangsUpAndTheNextOneReconnects() throws Exception {
+        // The first connection is closed after its first request arrives, the next one echoes.
+        try (ScriptedServer server = new ScriptedServer((connection, in, out) -> {
+                 byte[] request = readFrame(in);
+                 if (connection > 1) {
+                     echo(request, out);
+                 }
+             });
+             EchoClient client = new EchoClient(LengthPrefixedCodec.INSTANCE, 1, 1)) {
+            CompletableFuture<String> first = client.sendMessage(server.address(), "first");
+            CompletableFuture<String> second = client.sendMessage(server.address(), "second");
+            assertFailsWith(IOException.class, first);
+            assertFailsWith(IOException.class, second);
+
+            assertEquals("third" + SUFFIX, client.sendMessage(server.address(), "third").get(5, TimeUnit.SECONDS));
+            assertEquals(2, server.connections.get());
+        }
+    }
+
+    @Test
+    void closeFailsTheRequestsInFlightAndRejectsNewOnes() throws Exception {
+        // Takes the request and never answers.
+        try (ScriptedServer server = new ScriptedServer((connection, in, out) -> {
+                 readFrame(in);
+                 in.read();
+             })) {
+            EchoClient client = new EchoClient(LengthPrefixedCodec.INSTANCE, 1, 1);
+            CompletableFuture<String> pending = client.sendMessage(server.address(), "pending");
+            assertThrows(TimeoutException.class, () -> pending.get(100, TimeUnit.MILLISECONDS));
+            client.close();
+            assertInstanceOf(AsynchronousCloseException.class, assertFailsWith(IOException.class, pending).getCause());
+            assertFailsWith(AsynchronousCloseException.class, client.sendMessage(server.address(), "late"));
+        }
+    }
+
+    private static Throwable assertFailsWith(Class<? extends Throwable> type, CompletableFuture<String> response) {
+        ExecutionException e = assertThrows(ExecutionException.class, () -> response.get(5, TimeUnit.SECONDS));
+        return assertInstanceOf(type, e.getCause());
+    }
+
+    private static byte[] readFrame(DataInputStream in) throws IOException {
+        byte[] payload = new byte[in.readInt()];
+        in.readFully(payload);
+        return payload;
+    }
+
+    /** What the echo servers answer: the request's frame, then the suffix frame. */
+    private static void echo(byte[] request, DataOutputStream out) throws IOException {
+        out.writeInt(request.length);
+        out.write(request);
+        out.writeInt(Echo.SUFFIX.length);
+        out.write(Echo.SUFFIX);
+        out.flush();
+    }
+
+    /** A blocking server running {@code script} for each connection, numbered from 1, then hanging up. */
+    private static final class ScriptedServer implements AutoCloseable {
+        interface Script {
+            void run(int connection, DataInputStream in, DataOutputStream out) throws IOException;
+        }
+
+        final AtomicInteger connections = new AtomicInteger();
+        private final ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        private final List<Socket> sockets = new ArrayList<>();
+
+        ScriptedServer(Script script) throws IOException {
+            Thread acceptor = new Thread(() -> {
+                while (true) {
+                    Socket socket;
+                    try {
+                        socket = serverSocket.accept();
+                    } catch (IOException e) {
+                        return;
+                    }
+                    synchronized (sockets) {
+                        sockets.add(socket);
+                    }
+                    int connection = connections.incrementAndGet();
+                    Thread handler = new Thread(() -> {
+                        try (socket) {
+                            script.run(connection, new DataInputStream(socket.getInputStream()),
+                                    new DataOutputStream(socket.getOutputStream()));
+                        } catch (IOException e) {
+                            // The client or the test closed the connection.
+                        }
+                    }, "ScriptedServer-" + connection);
+                    handler.setDaemon(true);
+                    handler.start();
+                }
+            }, "ScriptedServer-accept");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        InetSocketAddress address() {
+            return (InetSocketAddress) serverSocket.getLocalSocketAddress();
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+            synchronized (sockets) {
+                for (Socket socket : sockets) {
+                    socket.close();
+                }
+            }
+        }
+    }
+}
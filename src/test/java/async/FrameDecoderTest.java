@@ -0,0 +1,93 @@
+package async;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/** Feeds encoded frames to a {@link FrameDecoder} in reads of random sizes, as a socket would. */
+class FrameDecoderTest {
+    private static final int BUFFER_SIZE = 1024;
+
+    @Test
+    void lengthPrefixedFramesOfAnySizeSurviveArbitraryReads() throws ProtocolException {
+        roundTrip(LengthPrefixedCodec.INSTANCE, payloads(new Random(1), 'x'));
+    }
+
+    @Test
+    void delimitedFramesOfAnySizeSurviveArbitraryReads() throws ProtocolException {
+        roundTrip(DelimiterCodec.LINE, payloads(new Random(2), 'x'));
+    }
+
+    @Test
+    void largeLengthPrefixedFrameIsAssembledFromPooledChunks() throws ProtocolException {
+        byte[] large = new byte[4 << 20];
+        Arrays.fill(large, (byte) 'y');
+        // Room for every chunk, so a drop can only mean a buffer outside the pool's classes.
+        BufferPool pool = new BufferPool(128, false);
+        roundTrip(LengthPrefixedCodec.INSTANCE, List.of(large, new byte[]{'z'}), pool);
+        assertEquals(0, pool.drops());
+        assertEquals(0, pool.outstanding());
+        long acquires = pool.misses() + pool.hits();
+        long chunks = large.length >> BufferPool.MAX_SHIFT;
+        assertTrue(acquires <= chunks + 16, "Expected about one buffer acquire per 64 KiB, got " + acquires);
+    }
+
+    private static void roundTrip(FrameCodec codec, List<byte[]> payloads) throws ProtocolException {
+        roundTrip(codec, payloads, BufferPool.SHARED);
+    }
+
+    private static void roundTrip(FrameCodec codec, List<byte[]> payloads, BufferPool pool) throws ProtocolException {
+        int total = 0;
+        for (byte[] payload : payloads) {
+            total += codec.encodedLength(payload.length);
+        }
+        ByteBuffer wire = ByteBuffer.allocate(total);
+        for (byte[] payload : payloads) {
+            codec.encode(payload, wire);
+        }
+        wire.flip();
+
+        List<byte[]> decoded = new ArrayList<>();
+        FrameDecoder decoder = new FrameDecoder(codec, BUFFER_SIZE, 16 << 20, pool);
+        Random random = new Random(3);
+        try {
+            while (wire.hasRemaining()) {
+                ByteBuffer read = decoder.buffer();
+                int length = Math.min(Math.min(wire.remaining(), read.remaining()), 1 + random.nextInt(3 * BUFFER_SIZE));
+                read.put(wire.slice(wire.position(), length));
+                wire.position(wire.position() + length);
+                decoder.decode((chunks, count, frameLength, frames) ->
+                        frames.add(FrameDecoder.toBytes(chunks, count, frameLength)), decoded);
+            }
+            assertTrue(!decoder.hasPartialFrame());
+        } finally {
+            decoder.release();
+        }
+
+        assertEquals(payloads.size(), decoded.size());
+        for (int i = 0; i < payloads.size(); i++) {
+            assertArrayEquals(payloads.get(i), decoded.get(i), "frame " + i);
+        }
+    }
+
+    /** Small frames around a few large ones, none containing a newline. */
+    private static List<byte[]> payloads(Random random, char fill) {
+        List<byte[]> payloads = new ArrayList<>();
+        for (int length : new int[]{0, 5, BUFFER_SIZE - 4, BUFFER_SIZE, 3 * BUFFER_SIZE + 7, 200_000, 12, 1 << 20, 1}) {
+            byte[] payload = new byte[length];
+            for (int i = 0; i < length; i++) {
+                payload[i] = (byte) (fill + random.nextInt(26) % 3);
+            }
+            payloads.add(payload);
+        }
+        return payloads;
+    }
+}
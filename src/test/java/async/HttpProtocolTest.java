@@ -0,0 +1,185 @@
+package async;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Feeds requests to an {@link HttpProtocol} behind a real {@link ConnectionContext} on a {@link RecordingChannel}, in
+ * reads of chosen sizes, and checks what it answers and whether it keeps the connection.
+ */
+class HttpProtocolTest {
+    private static final String HEALTH = "GET /health HTTP/1.1\r\nHost: localhost\r\n\r\n";
+    private static final String ECHO = "POST /echo HTTP/1.1\r\nHost: localhost\r\ncontent-length: 5\r\n\r\nhello";
+    private static final String ROOT = "GET /?q=1 HTTP/1.1\r\nUser-Agent: test\r\n\r\n";
+
+    private static final String HEALTH_RESPONSE = "HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Length: 3\r\n\r\nOK\n";
+    private static final String ECHO_RESPONSE = "HTTP/1.1 200 OK\r\nContent-Type: application/octet-stream\r\n"
+            + "Content-Length: 5\r\n\r\nhello";
+    private static final String ROOT_RESPONSE = "HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Length: 42\r\n"
+            + "\r\nHello, NIO2 async with CompletionHandler!\n";
+
+    @Test
+    void requestsSplitAcrossTwoReadsAtEveryByteGetTheSameAnswers() throws ProtocolException {
+        String requests = HEALTH + ECHO + ROOT;
+        String expected = HEALTH_RESPONSE + ECHO_RESPONSE + ROOT_RESPONSE;
+        for (int split = 1; split < requests.length(); split++) {
+            Exchange exchange = new Exchange();
+            exchange.send(requests.substring(0, split));
+            exchange.send(requests.substring(split));
+            assertEquals(expected, exchange.received(), "split at " + split);
+            assertTrue(exchange.open, "split at " + split);
+            assertFalse(exchange.protocol.hasPartialRequest(), "split at " + split);
+            exchange.close();
+        }
+    }
+
+    @Test
+    void requestsReadOneByteAtATimeGetTheSameAnswers() throws ProtocolException {
+        Exchange exchange = new Exchange();
+        for (char c : (HEALTH + ECHO + ROOT).toCharArray()) {
+            exchange.send(String.valueOf(c));
+        }
+        assertEquals(HEALTH_RESPONSE + ECHO_RESPONSE + ROOT_RESPONSE, exchange.received());
+        exchange.close();
+    }
+
+    @Test
+    void pipelinedRequestsAreAnsweredInOrderFromOneRead() throws ProtocolException {
+        Exchange exchange = new Exchange();
+        exchange.send(ROOT + HEALTH + "GET /missing HTTP/1.1\r\n\r\n" + HEALTH);
+        assertEquals(ROOT_RESPONSE + HEALTH_RESPONSE
+                + "HTTP/1.1 404 Not Found\r\nContent-Type: text/plain\r\nContent-Length: 10\r\n\r\nNot Found\n"
+                + HEALTH_RESPONSE, exchange.received());
+        assertTrue(exchange.open);
+        exchange.close();
+    }
+
+    @Test
+    void connectionCloseEndsTheConnectionAfterItsResponse() throws ProtocolException {
+        Exchange exchange = new Exchange();
+        exchange.send("GET /health HTTP/1.1\r\nConnection: close\r\n\r\n" + HEALTH);
+        assertEquals("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nConnection: close\r\nContent-Length: 3\r\n\r\nOK\n",
+                exchange.received());
+        assertFalse(exchange.open);
+        exchange.close();
+    }
+
+    @Test
+    void http10KeepsTheConnectionOnlyWhenAskedTo() throws ProtocolException {
+        Exchange keepAlive = new Exchange();
+        keepAlive.send("GET /health HTTP/1.0\r\nConnection: Keep-Alive\r\n\r\n");
+        assertTrue(keepAlive.received().contains("\r\nConnection: keep-alive\r\n"));
+        assertTrue(keepAlive.open);
+        keepAlive.close();
+
+        Exchange close = new Exchange();
+        close.send("GET /health HTTP/1.0\r\n\r\n");
+        assertTrue(close.received().contains("\r\nConnection: close\r\n"));
+        assertFalse(close.open);
+        close.close();
+    }
+
+    @Test
+    void contentLengthBodiesAreEchoedOrSkipped() throws ProtocolException {
+        Exchange exchange = new Exchange();
+        String body = "x".repeat(20_000);
+        // A body larger than the read buffer, echoed as it arrives; then a GET whose body is skipped.
+        exchange.send("POST /echo HTTP/1.1\r\nContent-Length: " + body.length() + "\r\n\r\n" + body
+                + "GET /health HTTP/1.1\r\nContent-Length: 4\r\n\r\nskip" + HEALTH);
+        assertEquals("HTTP/1.1 200 OK\r\nContent-Type: application/octet-stream\r\nContent-Length: 20000\r\n\r\n" + body
+                + HEALTH_RESPONSE + HEALTH_RESPONSE, exchange.received());
+        assertTrue(exchange.open);
+        exchange.close();
+    }
+
+    @Test
+    void chunkedBodiesAreNotImplemented() throws ProtocolException {
+        Exchange exchange = new Exchange();
+        exchange.send("POST /echo HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n5\r\nhello\r\n0\r\n\r\n");
+        assertTrue(exchange.received().startsWith("HTTP/1.1 501 Not Implemented\r\n"));
+        assertFalse(exchange.open);
+        exchange.close();
+    }
+
+    @Test
+    void conflictingContentLengthsAreABadRequest() throws ProtocolException {
+        Exchange conflicting = new Exchange();
+        conflicting.send("POST /echo HTTP/1.1\r\nContent-Length: 5\r\nContent-Length: 6\r\n\r\nhello!");
+        assertTrue(conflicting.received().startsWith("HTTP/1.1 400 Bad Request\r\n"));
+        assertFalse(conflicting.open);
+        conflicting.close();
+
+        // Repeating the same value is allowed.
+        Exchange repeated = new Exchange();
+        repeated.send("POST /echo HTTP/1.1\r\nContent-Length: 5\r\nContent-Length: 5\r\n\r\nhello");
+        assertEquals(ECHO_RESPONSE, repeated.received());
+        assertTrue(repeated.open);
+        repeated.close();
+    }
+
+    @Test
+    void oversizedHeadersAreRejected() throws ProtocolException {
+        // One header line longer than the limit, never terminated.
+        Exchange longLine = new Exchange();
+        longLine.send("GET / HTTP/1.1\r\nX-Long: " + "a".repeat(HttpProtocol.MAX_HEADER_BYTES));
+        assertTrue(longLine.received().startsWith("HTTP/1.1 431 Request Header Fields Too Large\r\n"));
+        assertFalse(longLine.open);
+        longLine.close();
+
+        // Many short lines adding up to more than the limit.
+        Exchange manyLines = new Exchange();
+        manyLines.send("GET / HTTP/1.1\r\n" + "X-Short: abc\r\n".repeat(HttpProtocol.MAX_HEADER_BYTES / 14 + 1) + "\r\n");
+        assertTrue(manyLines.received().startsWith("HTTP/1.1 431 Request Header Fields Too Large\r\n"));
+        assertFalse(manyLines.open);
+        manyLines.close();
+    }
+
+    @Test
+    void malformedRequestLinesAreABadRequest() throws ProtocolException {
+        Exchange exchange = new Exchange();
+        exchange.send("GET /health HTTP/2\r\n\r\n");
+        assertTrue(exchange.received().startsWith("HTTP/1.1 400 Bad Request\r\n"));
+        assertFalse(exchange.open);
+        exchange.close();
+    }
+
+    /** One connection: what was sent, what came back, and whether the protocol still keeps it open. */
+    private static final class Exchange {
+        final RecordingChannel channel = new RecordingChannel();
+        final HttpProtocol protocol = new HttpProtocol();
+        final ConnectionContext context = new ConnectionContext(channel, protocol,
+                new Shard(0, null, null, Protocol.Type.HTTP, null, new ServerLimits()));
+        final StringBuilder received = new StringBuilder();
+        boolean open = true;
+
+        /** Delivers {@code text} as reads as large as the buffer takes, processing after each, until closed. */
+        void send(String text) throws ProtocolException {
+            ByteBuffer bytes = ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII));
+            while (open && bytes.hasRemaining()) {
+                ByteBuffer buffer = protocol.buffer();
+                int length = Math.min(bytes.remaining(), buffer.remaining());
+                buffer.put(bytes.slice(bytes.position(), length));
+                bytes.position(bytes.position() + length);
+                open = protocol.process(context);
+                context.flush();
+                received.append(channel.takeWritten());
+            }
+        }
+
+        String received() {
+            String text = received.toString();
+            received.setLength(0);
+            return text;
+        }
+
+        void close() {
+            context.close();
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package async;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * A {@link Journal} in a temporary directory: what it acknowledges replays, a damaged tail is cut off on recovery,
+ * failing and closing reject what is not durable, and appending reuses its queue entries.
+ */
+class JournalTest {
+    private static final int ENTRY_LENGTH = 32;
+    private static final int WARMUP_APPENDS = 20_000;
+    private static final int MEASURED_APPENDS = 20_000;
+    // Batches of at most this many entries keep the entries in flight, and so the recycled ones, bounded.
+    private static final int BATCH = 100;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void appendingAllocatesNothingOnceWarm() throws IOException {
+        Journal journal = new Journal(directory, 1 << 20, 64 << 10, 1);
+        journal.start();
+        ByteBuffer payload = ByteBuffer.allocateDirect(ENTRY_LENGTH);
+
+        append(journal, payload, WARMUP_APPENDS);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long before = threads.getCurrentThreadAllocatedBytes();
+        append(journal, payload, MEASURED_APPENDS);
+        long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+
+        double perAppend = (double) allocated / MEASURED_APPENDS;
+        assertTrue(perAppend < 1, "Expected no allocation per append, got " + perAppend + " bytes");
+        journal.close();
+        assertEquals(WARMUP_APPENDS + MEASURED_APPENDS, Journal.replay(directory, 0, (sequence, entry) -> { }));
+    }
+
+    @Test
+    void entriesReplayWithTheirSequenceNumbersAcrossSegments() throws IOException {
+        // Small segments, so the entries span several of them.
+        Journal journal = new Journal(directory, 4096, 64 << 10, 1);
+        journal.start();
+        AtomicInteger acknowledged = new AtomicInteger();
+        long last = -1;
+        for (int i = 0; i < 1000; i++) {
+            last = journal.append(payload(i), 0, i % 100, (buffer, durable) -> {
+                if (durable) {
+                    acknowledged.incrementAndGet();
+                }
+            });
+            assertEquals(i, last);
+        }
+        journal.awaitDurable(last);
+        journal.close();
+        assertEquals(1000, acknowledged.get());
+        assertTrue(segmentFiles().size() > 10, "Expected the entries to span segments");
+
+        List<Long> sequences = new ArrayList<>();
+        assertEquals(1000, Journal.replay(directory, 0, (sequence, payload) -> {
+            sequences.add(sequence);
+            assertEquals(payload((int) sequence).limit((int) (sequence % 100)), payload);
+        }));
+        assertEquals(999, sequences.get(999));
+
+        // From the middle of a segment on: the earlier entries of that segment are skipped.
+        sequences.clear();
+        assertEquals(500, Journal.replay(directory, 500, (sequence, payload) -> sequences.add(sequence)));
+        assertEquals(500, sequences.get(0));
+        assertEquals(0, Journal.replay(directory, 1000, (sequence, payload) -> { }));
+    }
+
+    @Test
+    void recoveryCutsOffACorruptLastRecordAndATornTail() throws IOException {
+        Journal journal = new Journal(directory, 1 << 16, 64 << 10, 1);
+        journal.start();
+        long last = -1;
+        for (int i = 0; i < 10; i++) {
+            last = journal.append(payload(i), 0, 20, null);
+        }
+        journal.awaitDurable(last);
+        journal.close();
+
+        // Flip a payload byte of the last record, and leave a torn header after it, as a crash mid-write would.
+        Path segment = segmentFiles().get(0);
+        int recordLength = Journal.RECORD_HEADER_LENGTH + 20;
+        int lastRecord = 9 * recordLength;
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{(byte) 0xff}), lastRecord + Journal.RECORD_HEADER_LENGTH);
+            channel.write(ByteBuffer.allocate(Integer.BYTES).putInt(0, recordLength), lastRecord + recordLength);
+        }
+
+        journal = new Journal(directory, 1 << 16, 64 << 10, 1);
+        journal.start();
+        byte[] tail = new byte[2 * recordLength];
+        ByteBuffer.wrap(Files.readAllBytes(segment)).get(lastRecord, tail);
+        assertArrayEquals(new byte[tail.length], tail, "Expected the damaged tail to be zeroed");
+
+        // Appending resumes with the sequence number of the record that was cut off, right where it stood.
+        assertEquals(9, journal.append(payload(42), 0, 20, null));
+        journal.awaitDurable(9);
+        journal.close();
+        List<ByteBuffer> payloads = new ArrayList<>();
+        assertEquals(10, Journal.replay(directory, 0, (sequence, payload) -> payloads.add(copy(payload))));
+        assertEquals(payload(8).limit(20), payloads.get(8));
+        assertEquals(payload(42).limit(20), payloads.get(9));
+    }
+
+    @Test
+    void aFailedJournalRejectsWhatIsNotDurable() throws IOException {
+        Journal journal = new Journal(directory, 1 << 16, 64 << 10, 1);
+        journal.start();
+        // Without its directory the writer cannot create the first segment.
+        Files.delete(directory);
+        AtomicInteger rejected = new AtomicInteger();
+        Journal.Ack ack = (buffer, durable) -> {
+            if (!durable) {
+                rejected.incrementAndGet();
+            }
+        };
+        long first = journal.append(payload(0), 0, 20, ack);
+        assertThrows(IOException.class, () -> journal.awaitDurable(first));
+        // The writer acknowledges the rejected entries after waking the waiters; closing waits for it.
+        journal.close();
+        assertEquals(1, rejected.get());
+
+        // Once failed, appends are rejected right away, on the appending thread.
+        long second = journal.append(payload(1), 0, 20, ack);
+        assertEquals(2, rejected.get());
+        assertThrows(IOException.class, () -> journal.awaitDurable(second));
+    }
+
+    @Test
+    void closeMakesEverythingAppendedDurableAndRejectsLaterAppends() throws IOException {
+        // Nothing is forced before the close: neither the byte nor the time threshold is reached.
+        Journal journal = new Journal(directory, 1 << 20, 1 << 20, 60_000);
+        journal.start();
+        AtomicInteger durable = new AtomicInteger();
+        AtomicInteger rejected = new AtomicInteger();
+        Journal.Ack ack = (buffer, isDurable) -> (isDurable ? durable : rejected).incrementAndGet();
+        long last = -1;
+        for (int i = 0; i < 100; i++) {
+            last = journal.append(payload(i), 0, 20, ack);
+        }
+        journal.close();
+        assertEquals(100, durable.get());
+        journal.awaitDurable(last);
+
+        long late = journal.append(payload(100), 0, 20, ack);
+        assertEquals(1, rejected.get());
+        assertThrows(IOException.class, () -> journal.awaitDurable(late));
+        journal.close();
+        assertEquals(100, Journal.replay(directory, 0, (sequence, payload) -> { }));
+    }
+
+    /** 100 bytes, each the entry's number plus its index, so every entry and every position differs. */
+    private static ByteBuffer payload(int entry) {
+        ByteBuffer payload = ByteBuffer.allocate(100);
+        for (int i = 0; i < payload.limit(); i++) {
+            payload.put(i, (byte) (entry + i));
+        }
+        return payload;
+    }
+
+    private static ByteBuffer copy(ByteBuffer payload) {
+        ByteBuffer copy = ByteBuffer.allocate(payload.remaining());
+        copy.put(payload.duplicate()).flip();
+        return copy;
+    }
+
+    private List<Path> segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.sorted().toList();
+        }
+    }
+
+    private static void append(Journal journal, ByteBuffer payload, int count) throws IOException {
+        for (int i = 0; i < count; i += BATCH) {
+            long last = -1;
+            for (int j = 0; j < BATCH; j++) {
+                last = journal.append(payload, 0, ENTRY_LENGTH, null);
+            }
+            journal.awaitDurable(last);
+        }
+    }
+}
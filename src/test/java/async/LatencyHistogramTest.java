@@ -0,0 +1,73 @@
+package async;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/** Bucket boundaries of {@link LatencyHistogram}, and percentiles against the exact ones of the same values. */
+class LatencyHistogramTest {
+    @Test
+    void smallValuesHaveABucketEach() {
+        for (long value = 0; value < 256; value++) {
+            assertEquals(value, LatencyHistogram.indexOf(value));
+            assertEquals(value, LatencyHistogram.highestValueOf((int) value));
+        }
+    }
+
+    @Test
+    void everyBucketEndsWhereTheNextOneStarts() {
+        int last = LatencyHistogram.indexOf(Long.MAX_VALUE);
+        for (int index = 0; index < last; index++) {
+            long highest = LatencyHistogram.highestValueOf(index);
+            assertEquals(index, LatencyHistogram.indexOf(highest), "highest value of bucket " + index);
+            assertEquals(index + 1, LatencyHistogram.indexOf(highest + 1), "first value after bucket " + index);
+        }
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.highestValueOf(last));
+    }
+
+    @Test
+    void bucketsAreNarrowerThanOnePercentOfTheirValues() {
+        for (int index = 256; index < LatencyHistogram.indexOf(Long.MAX_VALUE); index++) {
+            long lowest = LatencyHistogram.highestValueOf(index - 1) + 1;
+            long highest = LatencyHistogram.highestValueOf(index);
+            assertTrue((double) (highest - lowest) / lowest < 0.01, "bucket " + index + ": " + lowest + ".." + highest);
+        }
+    }
+
+    @Test
+    void percentilesAreWithinOnePercentOfTheExactOnes() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Random random = new Random(4);
+        long[] values = new long[100_000];
+        for (int i = 0; i < values.length; i++) {
+            // Log-normal-ish latencies from a few microseconds to tens of milliseconds.
+            values[i] = (long) Math.exp(8 + 2 * random.nextGaussian());
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(values.length, snapshot.totalCount());
+        assertEquals(values[values.length - 1], snapshot.max());
+        for (double percentile : new double[]{1, 50, 90, 99, 99.9, 99.99, 100}) {
+            long exact = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+            long reported = snapshot.percentile(percentile);
+            assertTrue(reported >= exact && reported <= exact * 1.01 + 1,
+                    "p" + percentile + ": exact " + exact + ", reported " + reported);
+        }
+    }
+
+    @Test
+    void negativeValuesCountAsZeroAndResetClears() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        assertEquals(0, histogram.snapshot().percentile(100));
+        assertEquals(1, histogram.snapshot().totalCount());
+        histogram.reset();
+        assertEquals(0, histogram.snapshot().totalCount());
+        assertEquals(0, histogram.snapshot().max());
+    }
+}
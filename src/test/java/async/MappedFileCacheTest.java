@@ -0,0 +1,37 @@
+package async;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/** {@link MappedFileCache#find} serves what is under the root, and nothing a path or a link leads out to. */
+class MappedFileCacheTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void findsFilesUnderTheRootOnly() throws IOException {
+        Path root = Files.createDirectory(directory.resolve("root"));
+        Files.writeString(root.resolve("index.html"), "inside");
+        Files.writeString(directory.resolve("secret.txt"), "outside");
+        Files.createSymbolicLink(root.resolve("escape.txt"), directory.resolve("secret.txt"));
+        Files.createSymbolicLink(root.resolve("up"), directory);
+        Files.createSymbolicLink(root.resolve("alias.html"), root.resolve("index.html"));
+
+        MappedFileCache cache = new MappedFileCache(root.toString(), 1 << 20, 1 << 16);
+        MappedFileCache.MappedFile index = cache.find("index.html");
+        assertNotNull(index);
+        assertEquals(6, index.size());
+        assertEquals("text/html", cache.find("alias.html").contentType());
+
+        assertNull(cache.find("../secret.txt"));
+        assertNull(cache.find("escape.txt"));
+        assertNull(cache.find("up/secret.txt"));
+    }
+}
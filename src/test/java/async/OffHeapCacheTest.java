@@ -0,0 +1,133 @@
+package async;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+/** Mixed-size workloads against a small {@link OffHeapCache}: pages must move to the sizes being set. */
+class OffHeapCacheTest {
+    private static final long BUDGET = 4 << 20;
+
+    @Test
+    void largeItemsFitAfterSmallOnesFilledEveryPage() {
+        OffHeapCache cache = new OffHeapCache(BUDGET, 1);
+        for (int i = 0; i < 40_000; i++) {
+            set(cache, "small-" + i, 40);
+        }
+        for (int i = 0; i < 100; i++) {
+            set(cache, "large-" + i, 2000);
+        }
+        for (int i = 0; i < 100; i++) {
+            assertNotNull(get(cache, "large-" + i), "large-" + i);
+        }
+        // One page went to the large items, the small ones on the other three are still there.
+        assertEquals(100 + 3 * itemsPerPage("small-39999", 40), cache.stats()[0]);
+    }
+
+    @Test
+    void pagesFollowTheWorkloadBackAndForth() {
+        OffHeapCache cache = new OffHeapCache(BUDGET, 4);
+        for (int round = 0; round < 3; round++) {
+            int size = round % 2 == 0 ? 40 : 3000;
+            int count = (int) (2 * BUDGET / size);
+            for (int i = 0; i < count; i++) {
+                set(cache, round + "-" + i, size);
+            }
+            // The last page's worth of sets must still be there, whatever sizes the cache held before.
+            int recent = count / 8;
+            for (int i = count - recent; i < count; i++) {
+                byte[] value = get(cache, round + "-" + i);
+                assertNotNull(value, round + "-" + i);
+                assertEquals(size, value.length);
+            }
+            // Nearly every page holds items of this round's size by now.
+            long items = cache.stats()[0];
+            long capacity = BUDGET / OffHeapCache.PAGE_SIZE * itemsPerPage(round + "-" + count, size);
+            assertTrue(items >= capacity * 3 / 4, "Only " + items + " of " + capacity + " items cached after round " + round);
+        }
+        assertNull(get(cache, "0-0"));
+    }
+
+    @Test
+    void anItemPinnedAsOftenAsTheCounterHoldsIsCopiedAndNeverEvicted() {
+        OffHeapCache cache = new OffHeapCache(BUDGET, 1);
+        set(cache, "hot", 40);
+        ByteBuffer key = ByteBuffer.wrap("hot".getBytes(StandardCharsets.US_ASCII));
+        int hash = OffHeapCache.hash(key, 0, key.limit());
+        OffHeapCache.Segment segment = cache.segment(hash);
+        int handle = -1;
+        for (int i = 0; i < Short.MAX_VALUE; i++) {
+            handle = segment.pin(key, 0, key.limit(), hash);
+            assertTrue(handle >= 0);
+        }
+        // One more pin would wrap the counter to negative, letting the chunk be freed under the writes still holding it.
+        assertEquals(OffHeapCache.Segment.PINNED_OUT, segment.pin(key, 0, key.limit(), hash));
+        ByteBuffer copy = segment.copy(key, 0, key.limit(), hash);
+        assertEquals(segment.response(handle), copy);
+        BufferPool.SHARED.release(copy);
+
+        for (int i = 0; i < 40_000; i++) {
+            set(cache, "small-" + i, 40);
+        }
+        assertTrue(ascii(segment.response(handle)).startsWith("VALUE hot "));
+        for (int i = 0; i < Short.MAX_VALUE; i++) {
+            segment.release(null, handle);
+        }
+        assertEquals(40, get(cache, "hot").length);
+    }
+
+    private static long itemsPerPage(String key, int dataLength) {
+        long size = OffHeapCache.itemSize(key.length(), 0, dataLength);
+        return OffHeapCache.PAGE_SIZE / Long.highestOneBit(size * 2 - 1);
+    }
+
+    private static void set(OffHeapCache cache, String key, int dataLength) {
+        ByteBuffer keyBuffer = ByteBuffer.wrap(key.getBytes(StandardCharsets.US_ASCII));
+        int hash = OffHeapCache.hash(keyBuffer, 0, keyBuffer.limit());
+        OffHeapCache.Segment segment = cache.segment(hash);
+        int handle = segment.reserve(keyBuffer, 0, keyBuffer.limit(), hash, 0, dataLength);
+        assertTrue(handle >= 0, "No chunk for " + key);
+        byte[] data = new byte[dataLength + 2];
+        Arrays.fill(data, (byte) key.charAt(0));
+        data[dataLength] = '\r';
+        data[dataLength + 1] = '\n';
+        segment.fill(handle, 0, ByteBuffer.wrap(data), 0, data.length);
+        assertTrue(segment.commit(handle));
+    }
+
+    private static String ascii(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(buffer.position(), bytes);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    /** The data of a cached item, or null on a miss. */
+    private static byte[] get(OffHeapCache cache, String key) {
+        ByteBuffer keyBuffer = ByteBuffer.wrap(key.getBytes(StandardCharsets.US_ASCII));
+        int hash = OffHeapCache.hash(keyBuffer, 0, keyBuffer.limit());
+        OffHeapCache.Segment segment = cache.segment(hash);
+        int handle = segment.pin(keyBuffer, 0, keyBuffer.limit(), hash);
+        if (handle < 0) {
+            return null;
+        }
+        ByteBuffer response = segment.response(handle);
+        try {
+            String header = "VALUE " + key + " 0 ";
+            int lengthEnd = header.length();
+            while (response.get(lengthEnd) != '\r') {
+                lengthEnd++;
+            }
+            byte[] data = new byte[response.limit() - lengthEnd - 4];
+            response.get(lengthEnd + 2, data);
+            return data;
+        } finally {
+            segment.release(response, handle);
+        }
+    }
+}
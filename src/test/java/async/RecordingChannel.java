@@ -0,0 +1,134 @@
+package async;
+
+import java.io.ByteArrayOutputStream;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.spi.AsynchronousChannelProvider;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A channel for driving a {@link Protocol} through a real {@link ConnectionContext} without a socket: a gathering write
+ * takes all its bytes and completes at once, on the caller's thread; a read never completes, the test fills the
+ * protocol's buffer itself.
+ */
+final class RecordingChannel extends AsynchronousSocketChannel {
+    private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+    private boolean open = true;
+
+    RecordingChannel() {
+        super(AsynchronousChannelProvider.provider());
+    }
+
+    /** Everything written so far, as ASCII; clears it. */
+    String takeWritten() {
+        String text = written.toString(StandardCharsets.US_ASCII);
+        written.reset();
+        return text;
+    }
+
+    @Override
+    public <A> void write(ByteBuffer[] srcs, int offset, int length, long timeout, TimeUnit unit, A attachment,
+                          CompletionHandler<Long, ? super A> handler) {
+        long bytes = 0;
+        for (int i = offset; i < offset + length; i++) {
+            while (srcs[i].hasRemaining()) {
+                written.write(srcs[i].get());
+                bytes++;
+            }
+        }
+        handler.completed(bytes, attachment);
+    }
+
+    @Override
+    public <A> void read(ByteBuffer dst, long timeout, TimeUnit unit, A attachment,
+                         CompletionHandler<Integer, ? super A> handler) {
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+    }
+
+    @Override
+    public AsynchronousSocketChannel bind(SocketAddress local) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public <T> AsynchronousSocketChannel setOption(SocketOption<T> name, T value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public <T> T getOption(SocketOption<T> name) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Set<SocketOption<?>> supportedOptions() {
+        return Set.of();
+    }
+
+    @Override
+    public AsynchronousSocketChannel shutdownInput() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public AsynchronousSocketChannel shutdownOutput() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() {
+        return null;
+    }
+
+    @Override
+    public SocketAddress getLocalAddress() {
+        return null;
+    }
+
+    @Override
+    public <A> void connect(SocketAddress remote, A attachment, CompletionHandler<Void, ? super A> handler) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Future<Void> connect(SocketAddress remote) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Future<Integer> read(ByteBuffer dst) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public <A> void read(ByteBuffer[] dsts, int offset, int length, long timeout, TimeUnit unit, A attachment,
+                         CompletionHandler<Long, ? super A> handler) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public <A> void write(ByteBuffer src, long timeout, TimeUnit unit, A attachment,
+                          CompletionHandler<Integer, ? super A> handler) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Future<Integer> write(ByteBuffer src) {
+        throw new UnsupportedOperationException();
+    }
+}